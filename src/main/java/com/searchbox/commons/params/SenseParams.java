@@ -18,6 +18,11 @@ public class SenseParams {
   public static String SENSE_FIELD = "slt.sf";
   public static String DEFAULT_SENSE_FIELD = "article-abstract";
 
+  // binary DocValues field holding the vectors projected at index time
+  public static String SENSE_VECTOR_FIELD = "slt.vf";
+  // keep the projections of scored documents per segment for later queries
+  public static String SENSE_VECTOR_CACHE = "slt.vc";
+
   public static String SENSE_QPARSER = "sense";
 
   public static String SENSE_CKB_DEFAULT = "1";
@@ -39,4 +44,25 @@ public class SenseParams {
   //public static int  SENSE_QR_MAXDOC_DEFAULT = 10000;
   public static int SENSE_QR_MAXDOC_DEFAULT = 5000;
 
+  // candidates taken from the HNSW graphs of the segments, the nmd nearest by
+  // CKB projection, instead of from term conjunctions
+  public static String SENSE_ANN = "slt.ann";
+  // candidates explored per segment graph, at least nmd
+  public static String SENSE_ANN_EF = "slt.ef";
+  public static int SENSE_ANN_EF_DEFAULT = 200;
+
+  // leading CKB dimensions scored before the tail, 0 scores all at once
+  public static String SENSE_HEAD_DIMS = "shd";
+  public static int SENSE_HEAD_DIMS_DEFAULT = 0;
+
+  // "distance" blends 2 - euclidean distance, "dot" blends 1 + cosine
+  public static String SENSE_SIMILARITY = "ssim";
+  public static String SENSE_SIMILARITY_DISTANCE = "distance";
+  public static String SENSE_SIMILARITY_DOT = "dot";
+
+  public static String CKB_ADMIN_ACTION = "action";
+  public static String CKB_ADMIN_STATUS = "status";
+  public static String CKB_ADMIN_RELOAD = "reload";
+  public static String CKB_ADMIN_WAIT = "wait";
+
 }
@@ -0,0 +1,452 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import com.searchbox.math.VectorUtils;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Unit CKB projections of documents, filled as documents are scored and kept
+ * per segment core, so that segments unchanged by a commit keep their
+ * vectors for the next searcher. Vectors are keyed by the segment core, the
+ * sense field and the fingerprint of the CKB, and dropped when the segment
+ * core is closed or the CKB released, as is the HNSW graph of a segment's
+ * vectors once built.
+ */
+public final class DocumentVectorStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DocumentVectorStore.class);
+  // directory of the segment graphs under the data directory of a core
+  public static final String GRAPH_DIRECTORY = "sense-hnsw";
+  static final String GRAPH_EXTENSION = ".hnsw";
+  private static final Map<Key, SegmentVectors> segments = new ConcurrentHashMap<Key, SegmentVectors>();
+  // cores whose close is listened to
+  private static final Map<Object, Boolean> cores = new ConcurrentHashMap<Object, Boolean>();
+  // builds the graphs requested without waiting, one at a time
+  private static final ExecutorService GRAPH_BUILDER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "sense-graph");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private DocumentVectorStore() {
+  }
+
+  /**
+   * @return the vectors of the segment of <code>reader</code>, created empty
+   *         the first time
+   */
+  static SegmentVectors get(AtomicReader reader, String field, CognitiveKnowledgeBase ckb) {
+    final Object coreKey = reader.getCoreCacheKey();
+    final Key key = new Key(coreKey, field, ckb.getFingerprint());
+    SegmentVectors vectors = segments.get(key);
+    if (vectors == null) {
+      synchronized (segments) {
+        vectors = segments.get(key);
+        if (vectors == null) {
+          listen(reader, coreKey);
+          vectors = new SegmentVectors(reader.maxDoc(), ckb.getDimentionality());
+          segments.put(key, vectors);
+        }
+      }
+    }
+    return vectors;
+  }
+
+  /**
+   * Projects the live documents from <code>from</code> to <code>to</code> of
+   * the segment of <code>reader</code> that the store is missing, with the
+   * same arithmetic as the scorer, e.g. to warm a new searcher. Ranges of a
+   * segment can be filled concurrently.
+   *
+   * @return the number of documents projected
+   */
+  public static int fill(AtomicReader reader, String field, CognitiveKnowledgeBase ckb, int from, int to)
+    throws IOException {
+    final SegmentVectors vectors = get(reader, field, ckb);
+    final Bits liveDocs = reader.getLiveDocs();
+    final float[] projection = new float[ckb.getDimentionality()];
+    final float[] unit = new float[ckb.getDimentionality()];
+    int[] termIds = new int[0];
+    float[] freqs = new float[0];
+    TermsEnum termsEnum = null;
+    int projected = 0;
+    for (int doc = from; doc < to; doc++) {
+      if ((liveDocs != null && !liveDocs.get(doc)) || vectors.contains(doc)) {
+        continue;
+      }
+      Terms terms = reader.getTermVector(doc, field);
+      int size = 0;
+      if (terms != null) {
+        if (termIds.length < terms.size()) {
+          termIds = ArrayUtil.grow(termIds, (int) terms.size());
+          freqs = ArrayUtil.grow(freqs, (int) terms.size());
+        }
+        termsEnum = terms.iterator(termsEnum);
+        size = ckb.getTermIds(termsEnum, termIds, freqs);
+      }
+      ckb.projectInto(termIds, freqs, size, projection);
+      vectors.write(doc, unit, VectorUtils.normalizeInto(projection, unit));
+      projected++;
+    }
+    return projected;
+  }
+
+  /**
+   * @return the HNSW graph over the unit projections of the live documents
+   *         of the segment of <code>reader</code>, built the first time, and
+   *         kept under <code>directory</code> when not null so that the
+   *         segment is not indexed again after a restart. Waits for the
+   *         graph when it is being built by another thread.
+   */
+  public static HnswGraph getGraph(AtomicReader reader, String field, CognitiveKnowledgeBase ckb, File directory)
+    throws IOException {
+    return getGraph(reader, field, ckb, directory, true);
+  }
+
+  /**
+   * Like {@link #getGraph(AtomicReader, String, CognitiveKnowledgeBase, File)},
+   * but without <code>wait</code> a missing graph is built in the background
+   * and null returned until it is ready, so that searches fall back to
+   * another way of finding candidates rather than block on the build.
+   */
+  public static HnswGraph getGraph(final AtomicReader reader, final String field, final CognitiveKnowledgeBase ckb,
+                                   final File directory, boolean wait) throws IOException {
+    final SegmentVectors vectors = get(reader, field, ckb);
+    FutureTask<HnswGraph> task = vectors.graphTask.get();
+    if (task == null) {
+      FutureTask<HnswGraph> created = new FutureTask<HnswGraph>(new Callable<HnswGraph>() {
+        public HnswGraph call() throws IOException {
+          return buildGraph(reader, field, ckb, directory, vectors);
+        }
+      });
+      if (vectors.graphTask.compareAndSet(null, created)) {
+        task = created;
+        if (wait) {
+          created.run();
+        } else {
+          GRAPH_BUILDER.execute(created);
+        }
+      } else {
+        task = vectors.graphTask.get();
+        if (task == null) {
+          // the build of another thread failed meanwhile
+          return getGraph(reader, field, ckb, directory, wait);
+        }
+      }
+    }
+    if (!wait && !task.isDone()) {
+      return null;
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the document graph");
+    } catch (ExecutionException e) {
+      // a later call builds it again
+      vectors.graphTask.compareAndSet(task, null);
+      if (!wait) {
+        LOGGER.warn("Building the document graph failed: " + e.getCause());
+        return null;
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static HnswGraph buildGraph(AtomicReader reader, String field, CognitiveKnowledgeBase ckb, File directory,
+                                      SegmentVectors vectors) throws IOException {
+    File file = null;
+    if (directory != null && reader instanceof SegmentReader) {
+      file = new File(directory, graphFileName(((SegmentReader) reader).getSegmentName(), field, ckb));
+      if (file.exists()) {
+        try {
+          vectors.graph = readGraph(file, reader.maxDoc(), ckb.getDimentionality());
+          return vectors.graph;
+        } catch (IOException e) {
+          LOGGER.warn("Rebuilding the document graph " + file + ": " + e.getMessage());
+        }
+      }
+    }
+    final long start = System.currentTimeMillis();
+    fill(reader, field, ckb, 0, reader.maxDoc());
+    final Bits liveDocs = reader.getLiveDocs();
+    final float[] unit = new float[ckb.getDimentionality()];
+    HnswGraph graph = new HnswGraph(ckb.getDimentionality());
+    for (int doc = 0; doc < reader.maxDoc(); doc++) {
+      // documents without a projection are close to none
+      if ((liveDocs == null || liveDocs.get(doc)) && vectors.read(doc, unit) > 0) {
+        graph.add(doc, unit);
+      }
+    }
+    LOGGER.info("Built the document graph of " + graph.size() + " documents in "
+      + (System.currentTimeMillis() - start) + "ms");
+    if (file != null) {
+      writeGraph(graph, reader.maxDoc(), file);
+    }
+    vectors.graph = graph;
+    return graph;
+  }
+
+  static String graphFileName(String segment, String field, CognitiveKnowledgeBase ckb) {
+    return segment + "-" + field + "-" + Long.toHexString(ckb.getFingerprint()) + GRAPH_EXTENSION;
+  }
+
+  /**
+   * Graph files start with the number of documents of their segment, a cheap
+   * check against a segment name reused by another index.
+   */
+  private static HnswGraph readGraph(File file, int maxDoc, int dimension) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      final int segmentMaxDoc = in.readInt();
+      if (segmentMaxDoc != maxDoc) {
+        throw new IOException("Graph of a segment of " + segmentMaxDoc + " documents for one of " + maxDoc);
+      }
+      HnswGraph graph = HnswGraph.read(in);
+      if (graph.getDimension() != dimension) {
+        throw new IOException("Graph of dimension " + graph.getDimension() + " for a CKB of dimension " + dimension);
+      }
+      return graph;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeGraph(HnswGraph graph, int maxDoc, File file) {
+    file.getParentFile().mkdirs();
+    // renamed once complete, a crash never leaves a truncated graph
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(maxDoc);
+        graph.write(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+    } catch (IOException e) {
+      tmp.delete();
+      LOGGER.warn("Could not keep the document graph: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the graph files of <code>directory</code> left by segments that
+   * are not in <code>segments</code> any more, e.g. merged away.
+   */
+  public static void pruneGraphs(File directory, Collection<String> segments) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      final String name = file.getName();
+      final int dash = name.indexOf('-');
+      if (name.endsWith(GRAPH_EXTENSION) && dash > 0 && !segments.contains(name.substring(0, dash))) {
+        file.delete();
+      }
+    }
+  }
+
+  private static void listen(AtomicReader reader, final Object coreKey) {
+    if (cores.containsKey(coreKey)) {
+      return;
+    }
+    cores.put(coreKey, Boolean.TRUE);
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+        public void onClose(SegmentReader owner) {
+          evictCore(coreKey);
+        }
+      });
+    } else {
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+        public void onClose(IndexReader reader) {
+          evictCore(coreKey);
+        }
+      });
+    }
+  }
+
+  private static void evictCore(Object coreKey) {
+    synchronized (segments) {
+      cores.remove(coreKey);
+      for (Iterator<Key> it = segments.keySet().iterator(); it.hasNext(); ) {
+        if (it.next().coreKey == coreKey) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the vectors projected by the CKB with <code>fingerprint</code>.
+   */
+  public static void evict(long fingerprint) {
+    int evicted = 0;
+    synchronized (segments) {
+      for (Iterator<Key> it = segments.keySet().iterator(); it.hasNext(); ) {
+        if (it.next().fingerprint == fingerprint) {
+          it.remove();
+          evicted++;
+        }
+      }
+    }
+    if (evicted > 0) {
+      LOGGER.info("Dropped the document vectors of " + evicted + " segments");
+    }
+  }
+
+  /**
+   * @return the number of segments with vectors
+   */
+  public static int size() {
+    return segments.size();
+  }
+
+  public static long sizeInBytes() {
+    long size = 0;
+    for (SegmentVectors vectors : segments.values()) {
+      size += vectors.sizeInBytes();
+    }
+    return size;
+  }
+
+  private static final class Key {
+
+    final Object coreKey;
+    final String field;
+    final long fingerprint;
+
+    Key(Object coreKey, String field, long fingerprint) {
+      this.coreKey = coreKey;
+      this.field = field;
+      this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return coreKey == other.coreKey && fingerprint == other.fingerprint && field.equals(other.field);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * System.identityHashCode(coreKey) + field.hashCode()) + (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+  }
+
+  /**
+   * Vectors of the documents of one segment, allocated by blocks of
+   * documents as they are scored. The norm of a document is written after
+   * its vector and read before it, so that concurrent searches only read
+   * complete vectors; 0, which no norm is, marks a document not projected
+   * yet.
+   */
+  static final class SegmentVectors {
+
+    static final int BLOCK_SHIFT = 8;
+    static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    private final int dimension;
+    private final AtomicReferenceArray<float[]> blocks;
+    private final AtomicIntegerArray norms;
+    // the graph once built, and the build of the first caller
+    private volatile HnswGraph graph;
+    private final AtomicReference<FutureTask<HnswGraph>> graphTask = new AtomicReference<FutureTask<HnswGraph>>();
+
+    SegmentVectors(int maxDoc, int dimension) {
+      this.dimension = dimension;
+      this.blocks = new AtomicReferenceArray<float[]>((maxDoc >>> BLOCK_SHIFT) + 1);
+      this.norms = new AtomicIntegerArray(maxDoc);
+    }
+
+    boolean contains(int doc) {
+      return norms.get(doc) != 0;
+    }
+
+    /**
+     * Copies the unit vector of <code>doc</code> to <code>unit</code>.
+     *
+     * @return the norm of the projection of <code>doc</code>, negative
+     *         infinity when null, NaN when it was not projected yet
+     */
+    float read(int doc, float[] unit) {
+      final int bits = norms.get(doc);
+      if (bits == 0) {
+        return Float.NaN;
+      }
+      System.arraycopy(blocks.get(doc >>> BLOCK_SHIFT), (doc & BLOCK_MASK) * dimension, unit, 0, dimension);
+      return Float.intBitsToFloat(bits);
+    }
+
+    void write(int doc, float[] unit, float norm) {
+      final int block = doc >>> BLOCK_SHIFT;
+      float[] vectors = blocks.get(block);
+      if (vectors == null) {
+        blocks.compareAndSet(block, null, new float[dimension << BLOCK_SHIFT]);
+        vectors = blocks.get(block);
+      }
+      System.arraycopy(unit, 0, vectors, (doc & BLOCK_MASK) * dimension, dimension);
+      norms.set(doc, Float.floatToIntBits(norm));
+    }
+
+    long sizeInBytes() {
+      long size = 4L * norms.length();
+      final HnswGraph built = graph;
+      if (built != null) {
+        size += built.sizeInBytes();
+      }
+      for (int i = 0; i < blocks.length(); i++) {
+        if (blocks.get(i) != null) {
+          size += 4L * blocks.get(i).length;
+        }
+      }
+      return size;
+    }
+  }
+}
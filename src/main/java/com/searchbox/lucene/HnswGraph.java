@@ -0,0 +1,458 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin, 2016) over
+ * unit vectors, searched for the vectors of highest dot product, i.e. cosine,
+ * with a query. Nodes are added in document order and keep their document
+ * id. Searches may run concurrently once the graph is built, adding is not
+ * thread safe.
+ * <pre>
+ *   int magic, int version, int dimension, int m, int size, int entry,
+ *   int maxLevel, then for each node
+ *   int doc, int level, float[dimension] vector, and for each level
+ *   int count, int[count] neighbour nodes
+ * </pre>
+ */
+public final class HnswGraph {
+
+  static final int MAGIC = 0x53484E57;
+  static final int VERSION = 1;
+  public static final int DEFAULT_M = 16;
+  public static final int DEFAULT_EF_CONSTRUCTION = 100;
+
+  private final int dimension;
+  // neighbours kept per node on the upper levels, twice as many on level 0
+  private final int m;
+  private final int efConstruction;
+  private final double levelMultiplier;
+  private final Random random;
+  private int size;
+  private int[] docs = new int[16];
+  private float[] vectors;
+  // neighbours of every node on every level of the node
+  private int[][][] links = new int[16][][];
+  private int entry = -1;
+  private int maxLevel = -1;
+
+  public HnswGraph(int dimension) {
+    this(dimension, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, 42);
+  }
+
+  public HnswGraph(int dimension, int m, int efConstruction, long seed) {
+    this.dimension = dimension;
+    this.m = m;
+    this.efConstruction = efConstruction;
+    this.levelMultiplier = 1 / Math.log(m);
+    this.random = new Random(seed);
+    this.vectors = new float[16 * dimension];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * Adds the unit vector of <code>doc</code>.
+   */
+  public void add(int doc, float[] unit) {
+    final int node = size;
+    if (node == docs.length) {
+      docs = ArrayUtil.grow(docs, node + 1);
+      links = grow(links, docs.length);
+      float[] grown = new float[docs.length * dimension];
+      System.arraycopy(vectors, 0, grown, 0, node * dimension);
+      vectors = grown;
+    }
+    docs[node] = doc;
+    System.arraycopy(unit, 0, vectors, node * dimension, dimension);
+    final int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+    links[node] = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      links[node][l] = new int[0];
+    }
+    size++;
+    if (entry < 0) {
+      entry = node;
+      maxLevel = level;
+      return;
+    }
+
+    int ep = entry;
+    for (int l = maxLevel; l > level; l--) {
+      ep = greedy(vectors, node * dimension, ep, l);
+    }
+    final FixedBitSet visited = new FixedBitSet(size);
+    final NodeHeap candidates = new NodeHeap(efConstruction);
+    final NodeHeap results = new NodeHeap(efConstruction + 1);
+    for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+      visited.clear(0, size);
+      candidates.clear();
+      results.clear();
+      searchLayer(vectors, node * dimension, ep, efConstruction, l, null, visited, candidates, results);
+      final int[] found = new int[results.size()];
+      final float[] scores = new float[found.length];
+      // best first
+      for (int i = found.length - 1; i >= 0; i--) {
+        scores[i] = results.topScore();
+        found[i] = results.pop();
+      }
+      ep = found[0];
+      links[node][l] = select(node * dimension, found, scores, found.length, maxLinks(l));
+      for (int neighbour : links[node][l]) {
+        link(neighbour, node, l);
+      }
+    }
+    if (level > maxLevel) {
+      entry = node;
+      maxLevel = level;
+    }
+  }
+
+  private int maxLinks(int level) {
+    return level == 0 ? 2 * m : m;
+  }
+
+  private void link(int node, int neighbour, int level) {
+    final int[] current = links[node][level];
+    if (current.length < maxLinks(level)) {
+      int[] grown = new int[current.length + 1];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      grown[current.length] = neighbour;
+      links[node][level] = grown;
+      return;
+    }
+    // full, keep the best of the current neighbours and the new one
+    final int count = current.length + 1;
+    final int[] nodes = new int[count];
+    final float[] scores = new float[count];
+    System.arraycopy(current, 0, nodes, 0, current.length);
+    nodes[current.length] = neighbour;
+    for (int i = 0; i < count; i++) {
+      scores[i] = dot(vectors, node * dimension, nodes[i]);
+    }
+    sort(nodes, scores, count);
+    links[node][level] = select(node * dimension, nodes, scores, count, maxLinks(level));
+  }
+
+  /**
+   * Neighbour selection heuristic: a candidate, best first, is kept when it
+   * is closer to the base vector than to any candidate kept before, so that
+   * neighbours spread around the node; the others fill the remaining links.
+   */
+  private int[] select(int base, int[] nodes, float[] scores, int count, int max) {
+    final int[] selected = new int[Math.min(count, max)];
+    final boolean[] kept = new boolean[count];
+    int n = 0;
+    for (int i = 0; i < count && n < max; i++) {
+      boolean diverse = true;
+      for (int j = 0; j < n && diverse; j++) {
+        diverse = dot(vectors, nodes[i] * dimension, selected[j]) < scores[i];
+      }
+      if (diverse) {
+        selected[n++] = nodes[i];
+        kept[i] = true;
+      }
+    }
+    for (int i = 0; i < count && n < selected.length; i++) {
+      if (!kept[i]) {
+        selected[n++] = nodes[i];
+      }
+    }
+    return selected;
+  }
+
+  private int greedy(float[] query, int offset, int ep, int level) {
+    float best = dot(query, offset, ep);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int neighbour : links[ep][level]) {
+        final float score = dot(query, offset, neighbour);
+        if (score > best) {
+          best = score;
+          ep = neighbour;
+          changed = true;
+        }
+      }
+    }
+    return ep;
+  }
+
+  /**
+   * Best first search of one level from <code>ep</code>. Nodes rejected by
+   * <code>accept</code> are walked through but not returned.
+   */
+  private void searchLayer(float[] query, int offset, int ep, int ef, int level, Bits accept, FixedBitSet visited,
+                           NodeHeap candidates, NodeHeap results) {
+    visited.set(ep);
+    final float epScore = dot(query, offset, ep);
+    // candidates are kept best first by negating their scores
+    candidates.push(ep, -epScore);
+    if (accept == null || accept.get(docs[ep])) {
+      results.push(ep, epScore);
+    }
+    while (candidates.size() > 0) {
+      if (results.size() >= ef && -candidates.topScore() < results.topScore()) {
+        break;
+      }
+      final int current = candidates.pop();
+      for (int neighbour : links[current][level]) {
+        if (visited.get(neighbour)) {
+          continue;
+        }
+        visited.set(neighbour);
+        final float score = dot(query, offset, neighbour);
+        if (results.size() < ef || score > results.topScore()) {
+          candidates.push(neighbour, -score);
+          if (accept == null || accept.get(docs[neighbour])) {
+            results.push(neighbour, score);
+            if (results.size() > ef) {
+              results.pop();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the <code>k</code> documents of highest dot product with the unit
+   * vector <code>query</code>, exploring <code>ef</code> candidates.
+   *
+   * @param accept documents that can be returned, null for all
+   * @return the number of documents written to <code>hits</code> and
+   *         <code>scores</code>, best first
+   */
+  public int search(float[] query, int k, int ef, Bits accept, int[] hits, float[] scores) {
+    if (entry < 0 || k <= 0) {
+      return 0;
+    }
+    ef = Math.max(ef, k);
+    int ep = entry;
+    for (int l = maxLevel; l > 0; l--) {
+      ep = greedy(query, 0, ep, l);
+    }
+    final NodeHeap results = new NodeHeap(ef + 1);
+    searchLayer(query, 0, ep, ef, 0, accept, new FixedBitSet(size), new NodeHeap(ef), results);
+    while (results.size() > k) {
+      results.pop();
+    }
+    final int count = results.size();
+    for (int i = count - 1; i >= 0; i--) {
+      scores[i] = results.topScore();
+      hits[i] = docs[results.pop()];
+    }
+    return count;
+  }
+
+  private float dot(float[] query, int offset, int node) {
+    final float[] v = vectors;
+    float dot = 0;
+    for (int i = 0, j = node * dimension; i < dimension; i++, j++) {
+      dot += query[offset + i] * v[j];
+    }
+    return dot;
+  }
+
+  public long sizeInBytes() {
+    long bytes = 4L * (docs.length + vectors.length);
+    for (int node = 0; node < size; node++) {
+      for (int[] level : links[node]) {
+        bytes += 4L * level.length + 16;
+      }
+    }
+    return bytes;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(dimension);
+    out.writeInt(m);
+    out.writeInt(size);
+    out.writeInt(entry);
+    out.writeInt(maxLevel);
+    for (int node = 0; node < size; node++) {
+      out.writeInt(docs[node]);
+      out.writeInt(links[node].length - 1);
+      for (int i = node * dimension, end = i + dimension; i < end; i++) {
+        out.writeFloat(vectors[i]);
+      }
+      for (int[] level : links[node]) {
+        out.writeInt(level.length);
+        for (int neighbour : level) {
+          out.writeInt(neighbour);
+        }
+      }
+    }
+  }
+
+  public static HnswGraph read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a HNSW graph file (bad magic number)");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported HNSW graph version " + version + ", this build reads " + VERSION);
+    }
+    final int dimension = in.readInt();
+    final int m = in.readInt();
+    HnswGraph graph = new HnswGraph(dimension, m, DEFAULT_EF_CONSTRUCTION, 42);
+    final int size = in.readInt();
+    graph.entry = in.readInt();
+    graph.maxLevel = in.readInt();
+    if (dimension <= 0 || m <= 0 || size < 0 || graph.entry >= size || (size > 0) != (graph.entry >= 0)) {
+      throw new IOException("Corrupted HNSW graph header: dimension=" + dimension + ", m=" + m + ", size=" + size);
+    }
+    graph.docs = new int[size];
+    graph.vectors = new float[size * dimension];
+    graph.links = new int[size][][];
+    for (int node = 0; node < size; node++) {
+      graph.docs[node] = in.readInt();
+      final int levels = in.readInt() + 1;
+      if (levels <= 0) {
+        throw new IOException("Corrupted HNSW graph: node " + node + " has " + levels + " levels");
+      }
+      graph.links[node] = new int[levels][];
+      for (int i = node * dimension, end = i + dimension; i < end; i++) {
+        graph.vectors[i] = in.readFloat();
+      }
+      for (int l = 0; l < graph.links[node].length; l++) {
+        final int[] level = new int[in.readInt()];
+        for (int i = 0; i < level.length; i++) {
+          level[i] = in.readInt();
+          if (level[i] < 0 || level[i] >= size) {
+            throw new IOException("Corrupted HNSW graph: node " + node + " links to " + level[i]);
+          }
+        }
+        graph.links[node][l] = level;
+      }
+    }
+    // searches walk down from the entry node and follow links on their level
+    if (size > 0 && graph.links[graph.entry].length != graph.maxLevel + 1) {
+      throw new IOException("Corrupted HNSW graph: entry node " + graph.entry + " is not on level " + graph.maxLevel);
+    }
+    for (int node = 0; node < size; node++) {
+      for (int l = 0; l < graph.links[node].length; l++) {
+        for (int neighbour : graph.links[node][l]) {
+          if (graph.links[neighbour].length <= l) {
+            throw new IOException("Corrupted HNSW graph: node " + node + " links to " + neighbour + " on level " + l);
+          }
+        }
+      }
+    }
+    graph.size = size;
+    return graph;
+  }
+
+  private static int[][][] grow(int[][][] array, int length) {
+    int[][][] grown = new int[length][][];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * Sorts <code>nodes</code> by decreasing score.
+   */
+  private static void sort(int[] nodes, float[] scores, int count) {
+    for (int i = 1; i < count; i++) {
+      final int node = nodes[i];
+      final float score = scores[i];
+      int j = i - 1;
+      for (; j >= 0 && scores[j] < score; j--) {
+        nodes[j + 1] = nodes[j];
+        scores[j + 1] = scores[j];
+      }
+      nodes[j + 1] = node;
+      scores[j + 1] = score;
+    }
+  }
+
+  /**
+   * Binary min heap of nodes by score.
+   */
+  static final class NodeHeap {
+
+    private int[] nodes;
+    private float[] scores;
+    private int size;
+
+    NodeHeap(int capacity) {
+      nodes = new int[Math.max(1, capacity)];
+      scores = new float[nodes.length];
+    }
+
+    int size() {
+      return size;
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    float topScore() {
+      return scores[0];
+    }
+
+    void push(int node, float score) {
+      if (size == nodes.length) {
+        nodes = ArrayUtil.grow(nodes, size + 1);
+        scores = ArrayUtil.grow(scores, size + 1);
+      }
+      int i = size++;
+      while (i > 0) {
+        final int parent = (i - 1) >>> 1;
+        if (scores[parent] <= score) {
+          break;
+        }
+        nodes[i] = nodes[parent];
+        scores[i] = scores[parent];
+        i = parent;
+      }
+      nodes[i] = node;
+      scores[i] = score;
+    }
+
+    int pop() {
+      final int top = nodes[0];
+      final int node = nodes[--size];
+      final float score = scores[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && scores[child + 1] < scores[child]) {
+          child++;
+        }
+        if (scores[child] >= score) {
+          break;
+        }
+        nodes[i] = nodes[child];
+        scores[i] = scores[child];
+        i = child;
+      }
+      nodes[i] = node;
+      scores[i] = score;
+      return top;
+    }
+  }
+}
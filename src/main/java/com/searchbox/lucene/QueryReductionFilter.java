@@ -1,24 +1,32 @@
 package com.searchbox.lucene;
 
+import com.searchbox.math.DoubleFullVector;
 import com.searchbox.math.RealTermFreqVector;
 import com.searchbox.sense.CognitiveKnowledgeBase;
 import com.searchbox.solr.SenseQParserPlugin;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.DocListAndSet;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortedIntDocSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -40,11 +48,20 @@ public class QueryReductionFilter {
   private BooleanQuery filterQR;
   private HashMap<TreeSet<Integer>, Long> subQuerycache = new HashMap<TreeSet<Integer>, Long>();
   private HashSet<TreeSet<Integer>> outterQuery = new HashSet<TreeSet<Integer>>();
+  // nearest documents by concept from the segment graphs instead of term conjunctions
+  private boolean approximate = false;
+  private int ef = 200;
+  private File graphDirectory;
+  private boolean nearest = false;
   private DocListAndSet filtered;
   private SimpleOrderedMap<Object> dbginfo = new SimpleOrderedMap<Object>();
 
   public QueryReductionFilter(RealTermFreqVector rtv, String CKBid, SolrIndexSearcher searcher, String senseField) {
-    this.ckb = ((CognitiveKnowledgeBase) SenseQParserPlugin.getCKBbyID(CKBid));
+    this(rtv, SenseQParserPlugin.getCKBbyID(CKBid), searcher, senseField);
+  }
+
+  public QueryReductionFilter(RealTermFreqVector rtv, CognitiveKnowledgeBase ckb, SolrIndexSearcher searcher, String senseField) {
+    this.ckb = ckb;
     dbginfo.add("ckb", ckb.getName());
     this.rtv = rtv;
     dbginfo.add("tf size", this.rtv.getSize());
@@ -95,6 +112,99 @@ public class QueryReductionFilter {
     this.maxDocSubSet = maxDocSubSet;
   }
 
+  public boolean isApproximate() {
+    return approximate;
+  }
+
+  public void setApproximate(boolean approximate) {
+    this.approximate = approximate;
+  }
+
+  public int getEf() {
+    return ef;
+  }
+
+  public void setEf(int ef) {
+    this.ef = ef;
+  }
+
+  /**
+   * Directory keeping the segment graphs across restarts, null to keep them
+   * in memory only.
+   */
+  public void setGraphDirectory(File graphDirectory) {
+    this.graphDirectory = graphDirectory;
+  }
+
+  /**
+   * The <code>maxDocSubSet</code> documents of <code>otherFilterDocSet</code>
+   * whose CKB projection is closest to the query's, searched in the HNSW
+   * graph of every segment.
+   *
+   * @return null when the query has no CKB projection or the graph of a
+   *         segment is not built yet
+   */
+  public DocListAndSet getNearestNeighbours(final DocSet otherFilterDocSet) throws IOException {
+    DoubleFullVector qvector = ckb.getFullCkbVector(rtv);
+    if (!(qvector.getNorm() > 0)) {
+      return null;
+    }
+    final float[] query = qvector.getUnitVector().getData();
+    final int k = maxDocSubSet;
+    final int[] hits = new int[k];
+    final float[] scores = new float[k];
+    HnswGraph.NodeHeap best = new HnswGraph.NodeHeap(k + 1);
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      final AtomicReader reader = leaf.reader();
+      final Bits liveDocs = reader.getLiveDocs();
+      final int docBase = leaf.docBase;
+      Bits accept = new Bits() {
+        public boolean get(int doc) {
+          return (liveDocs == null || liveDocs.get(doc)) && otherFilterDocSet.exists(docBase + doc);
+        }
+
+        public int length() {
+          return reader.maxDoc();
+        }
+      };
+      HnswGraph graph = DocumentVectorStore.getGraph(reader, senseField, ckb, graphDirectory, false);
+      if (graph == null) {
+        // built in the background meanwhile, the query terms find the candidates
+        dbginfo.add("ann_pending", true);
+        return null;
+      }
+      final int found = graph.search(query, k, ef, accept, hits, scores);
+      for (int zz = 0; zz < found; zz++) {
+        best.push(docBase + hits[zz], scores[zz]);
+        if (best.size() > k) {
+          best.pop();
+        }
+      }
+    }
+    final int size = best.size();
+    final int[] docs = new int[size];
+    final float[] docScores = new float[size];
+    for (int zz = size - 1; zz >= 0; zz--) {
+      docScores[zz] = best.topScore();
+      docs[zz] = best.pop();
+    }
+    DocListAndSet nearest = new DocListAndSet();
+    nearest.docList = new DocSlice(0, size, docs, docScores, size, size > 0 ? docScores[0] : 0f);
+    int[] sorted = docs.clone();
+    Arrays.sort(sorted);
+    nearest.docSet = new SortedIntDocSet(sorted);
+    return nearest;
+  }
+
+  /**
+   * @return the documents found by {@link #getNearestNeighbours(DocSet)}, for
+   *         the SenseQuery to score instead of the documents containing a
+   *         query term, or null when the subset was found otherwise
+   */
+  public Filter getNearestFilter() {
+    return nearest ? filtered.docSet.getTopFilter() : null;
+  }
+
   public BooleanQuery getFiltersForQueryRedux(DocSet otherFilterDocSet) throws IOException {
     filterQR = new BooleanQuery();
     int numterms = this.rtv.getSize();
@@ -118,7 +228,7 @@ public class QueryReductionFilter {
     for (int zz = 0; zz < numterms; zz++) {
       Holder lhq = new Holder();
       lhq.spot = zz;
-      lhq.value = this.ckb.getFullCkbVector(rtvn.getTerms()[zz], rtvn.getFreqs()[zz]).getNorm();
+      lhq.value = this.ckb.getTermNorm(rtvn.getTerms()[zz], rtvn.getFreqs()[zz]);
       hqmp.add(rtvn.getTerms()[zz], lhq.value);
       hq[zz] = lhq;
     }
@@ -198,6 +308,12 @@ public class QueryReductionFilter {
       LOGGER.debug("Filterset too small, not doing query reduction");
       dbginfo.add("did_qr", false);
       filterQR = new MatchAllDocsQuery();
+    } else if (approximate && (filtered = getNearestNeighbours(otherFilterDocSet)) != null) {
+      nearest = true;
+      dbginfo.add("did_qr", false);
+      dbginfo.add("did_ann", true);
+      dbginfo.add("ef", ef);
+      return filtered.docList;
     } else {
       filterQR = getFiltersForQueryRedux(otherFilterDocSet);
       dbginfo.add("did_qr", true);
@@ -213,7 +329,7 @@ public class QueryReductionFilter {
     dbginfo.add("numtermstouse", numtermstouse);
     dbginfo.add("maxDocSubSet", maxDocSubSet);
     dbginfo.add("minDocSetSizeForFilter", minDocSetSizeForFilter);
-    dbginfo.add("filterQR", filterQR.toString());
+    dbginfo.add("filterQR", String.valueOf(filterQR));
     dbginfo.add("subQuerycache_size", subQuerycache.size());
     dbginfo.add("outterQuery_size", outterQuery.size());
     dbginfo.add("filtered_doclist_size", filtered.docList.size());
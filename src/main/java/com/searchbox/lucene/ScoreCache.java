@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import java.util.Arrays;
+
+/**
+ * Scores of the documents of one segment already scored by a search, in an
+ * open addressing map from doc id to score with linear probing. Unlike a
+ * HashMap nothing is boxed, and the arrays are kept when the cache moves on
+ * to another segment or search, so a thread scoring searches one after the
+ * other stops allocating once they are large enough. Not thread safe.
+ */
+final class ScoreCache {
+
+  private static final int EMPTY = -1;
+  private int[] docs = new int[64];
+  private float[] scores = new float[64];
+  private int size;
+  private long search = -1;
+  private int segment = -1;
+
+  ScoreCache() {
+    Arrays.fill(docs, EMPTY);
+  }
+
+  /**
+   * Clears the cache unless it already holds scores of the segment
+   * <code>segment</code>, the ord of its context, for the search
+   * <code>search</code>.
+   */
+  void use(long search, int segment) {
+    if (this.search != search || this.segment != segment) {
+      this.search = search;
+      this.segment = segment;
+      if (size > 0) {
+        Arrays.fill(docs, EMPTY);
+        size = 0;
+      }
+    }
+  }
+
+  /**
+   * @return the score of <code>doc</code>, NaN if it was not scored yet
+   */
+  float get(int doc) {
+    final int mask = docs.length - 1;
+    for (int slot = hash(doc) & mask; ; slot = (slot + 1) & mask) {
+      final int stored = docs[slot];
+      if (stored == doc) {
+        return scores[slot];
+      }
+      if (stored == EMPTY) {
+        return Float.NaN;
+      }
+    }
+  }
+
+  void put(int doc, float score) {
+    // kept at most half full
+    if (2 * (size + 1) > docs.length) {
+      grow();
+    }
+    final int mask = docs.length - 1;
+    int slot = hash(doc) & mask;
+    while (docs[slot] != EMPTY && docs[slot] != doc) {
+      slot = (slot + 1) & mask;
+    }
+    if (docs[slot] == EMPTY) {
+      docs[slot] = doc;
+      size++;
+    }
+    scores[slot] = score;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void grow() {
+    final int[] oldDocs = docs;
+    final float[] oldScores = scores;
+    docs = new int[oldDocs.length << 1];
+    scores = new float[oldDocs.length << 1];
+    Arrays.fill(docs, EMPTY);
+    final int mask = docs.length - 1;
+    for (int i = 0; i < oldDocs.length; i++) {
+      if (oldDocs[i] != EMPTY) {
+        int slot = hash(oldDocs[i]) & mask;
+        while (docs[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        docs[slot] = oldDocs[i];
+        scores[slot] = oldScores[i];
+      }
+    }
+  }
+
+  private static int hash(int doc) {
+    // doc ids of a filter are often dense, spread them over the table
+    final int h = doc * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -2,6 +2,7 @@ package com.searchbox.lucene;
 
 import com.searchbox.math.DoubleFullVector;
 import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.math.SparseFloatVector;
 import com.searchbox.sense.CognitiveKnowledgeBase;
 import com.searchbox.solr.SenseQParserPlugin;
 import org.apache.lucene.analysis.Analyzer;
@@ -11,8 +12,12 @@ import org.apache.lucene.queries.CustomScoreProvider;
 import org.apache.lucene.queries.CustomScoreQuery;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
@@ -21,27 +26,61 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SenseQuery extends CustomScoreQuery {
 
   public static final Logger LOGGER = LoggerFactory.getLogger(SenseQuery.class);
+  private static final AtomicLong searches = new AtomicLong();
+  /**
+   * Number of documents the handlers collect and cache per query. It is also
+   * the k given to {@link #setTopK}, so that every collected document gets
+   * its exact score.
+   */
+  public static final int COLLECTED_ROWS = 1000;
   private final RealTermFreqVector rtfv;
   private final CognitiveKnowledgeBase ckb;
   private final RealTermFreqVector qtfidf;
+  private final SparseFloatVector qTfIdf;
   private final DoubleFullVector qvector;
   private String senseField;
   private float senseWeight = .8f;
+  private int headDimensions = 0;
+  private float qTailNorm;
+  private TopKThreshold topK;
+  private volatile long searchId = searches.incrementAndGet();
+  private boolean dotProduct = false;
+  private String vectorField;
+  private boolean vectorCache = false;
   private SimpleOrderedMap<Object> dbginfo = new SimpleOrderedMap<Object>();
 
   public SenseQuery(final RealTermFreqVector rtfv, final String senseField, final String ckbID, float senseWeight, final List<Query> filters) {
-    super(generateLuceneQuery(rtfv.getTerms(), senseField, filters));
+    this(rtfv, senseField, SenseQParserPlugin.getCKBbyID(ckbID), senseWeight, filters);
+  }
+
+  /**
+   * The query keeps <code>ckb</code> for its whole life, even if a new
+   * version of the CKB is published meanwhile.
+   */
+  public SenseQuery(final RealTermFreqVector rtfv, final String senseField, final CognitiveKnowledgeBase ckb, float senseWeight, final List<Query> filters) {
+    this(rtfv, senseField, ckb, senseWeight, filters, null);
+  }
+
+  /**
+   * @param candidates documents to score, e.g. the nearest ones by concept,
+   *                   whether they contain query terms or not; null to
+   *                   score the documents containing any query term
+   */
+  public SenseQuery(final RealTermFreqVector rtfv, final String senseField, final CognitiveKnowledgeBase ckb, float senseWeight, final List<Query> filters, final Filter candidates) {
+    super(generateLuceneQuery(rtfv.getTerms(), senseField, filters, candidates));
     this.senseField = senseField;
     dbginfo.add("senseField", senseField);
 
     this.senseWeight = senseWeight;
     dbginfo.add("senseWeight", senseWeight);
-    //TODO shoul be getting a CKB by some clever method
-    this.ckb = SenseQParserPlugin.getCKBbyID(ckbID);
+    this.ckb = ckb;
     dbginfo.add("ckb", ckb.getName());
     this.rtfv = rtfv;
     dbginfo.add("tf size", this.rtfv.getSize());
@@ -55,13 +94,36 @@ public class SenseQuery extends CustomScoreQuery {
     dbginfo.add("tfidf_norm", tqtfidf.getNorm());
     this.qtfidf = tqtfidf.getUnitVector();
 
+    // the same unit tf-idf vector keyed by increasing term id, for scoring
+    Map<Integer, Float> byId = new TreeMap<Integer, Float>();
+    for (int zz = 0; zz < rtfv.getSize(); zz++) {
+      int termId = ckb.getTermId(rtfv.getTerms()[zz]);
+      if (termId >= 0) {
+        byId.put(termId, rtfv.getFreqs()[zz]);
+      }
+    }
+    int[] qTermIds = new int[byId.size()];
+    float[] qfreqs = new float[byId.size()];
+    int pos = 0;
+    for (Map.Entry<Integer, Float> e : byId.entrySet()) {
+      qTermIds[pos] = e.getKey();
+      qfreqs[pos++] = e.getValue();
+    }
+    float[] qweights = new float[qTermIds.length];
+    float qnorm = ckb.getTfIdf(qTermIds, qfreqs, qTermIds.length, qweights);
+    for (int zz = 0; qnorm > 0 && zz < qweights.length; zz++) {
+      qweights[zz] /= qnorm;
+    }
+    this.qTfIdf = new SparseFloatVector(qTermIds, qweights, qTermIds.length);
 
   }
 
-  private static Query generateLuceneQuery(final String[] terms, final String senseField, final List<Query> filters) {
+  private static Query generateLuceneQuery(final String[] terms, final String senseField, final List<Query> filters, final Filter candidates) {
 
     BooleanQuery topLevelQuery = new BooleanQuery();
-    if (terms != null) {
+    if (candidates != null) {
+      topLevelQuery.add(new BooleanClause(new ConstantScoreQuery(candidates), BooleanClause.Occur.MUST));
+    } else if (terms != null) {
       for (String term : terms) {
         topLevelQuery.add(new BooleanClause(new TermQuery(new Term(senseField, term)), BooleanClause.Occur.SHOULD));
       }
@@ -91,7 +153,139 @@ public class SenseQuery extends CustomScoreQuery {
     }
     LOGGER.debug("Using senseWeight:\t" + senseWeight);
 
-    return new SenseScoreProvider(context, senseField, ckb, qvector, qtfidf, (float) senseWeight);
+    return new SenseScoreProvider(context, this);
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher) throws IOException {
+    if (topK != null) {
+      topK.reset();
+    }
+    // scores cached by an earlier search are not reused, the index may have changed
+    searchId = searches.incrementAndGet();
+    return super.createWeight(searcher);
+  }
+
+  /**
+   * Lets the scorer reject documents that can not enter the top k. Past the
+   * k-th best score of the search so far, the CKB and tf-idf distances a
+   * document may have and still enter the top k are known, and their
+   * squared sums are abandoned once they exceed them.
+   * <p/>
+   * With <code>headDimensions</code>, the CKB distance is first computed
+   * over the leading dimensions of the CKB, where SVD models keep most of
+   * their mass. Both vectors having unit norm, the norm of the document tail
+   * is known from its head and bounds the remaining distance from below,
+   * since <code>|q_tail - d_tail| &gt;= | |q_tail| - |d_tail| |</code>, which
+   * may reject the document before its tail is read.
+   * <p/>
+   * The k best documents and their scores are unchanged, the scores of the
+   * rejected ones are upper bounds.
+   *
+   * @param k              number of documents the search collects sorted by
+   *                       relevance, e.g. {@link #COLLECTED_ROWS}
+   * @param headDimensions number of leading dimensions bounding the CKB
+   *                       distance first, 0 for none; a multiple of
+   *                       {@link DoubleFullVector#BLOCK} lets the distance
+   *                       of the documents kept carry on from the head
+   */
+  public void setTopK(int k, int headDimensions) {
+    final int dim = qvector.getDimension();
+    this.headDimensions = Math.min(Math.max(headDimensions, 0), dim);
+    this.qTailNorm = (float) Math.sqrt(qvector.getSquaredNorm(this.headDimensions, dim));
+    this.topK = k > 0 ? new TopKThreshold(k) : null;
+    dbginfo.add("headDimensions", this.headDimensions);
+  }
+
+  /**
+   * Scores each half by the dot product of the unit document and query
+   * vectors, their cosine, instead of their euclidean distance: documents
+   * score <code>sw * (1 + cos_ckb) + (1 - sw) * (1 + cos_tfidf)</code> in
+   * place of <code>sw * (2 - d_ckb) + (1 - sw) * (2 - d_tfidf)</code>.
+   * <p/>
+   * For unit vectors <code>d = sqrt(2 - 2 cos)</code>, so each half ranks
+   * documents as before and with a sense weight of 0 or 1 the results are
+   * the same. Blending two halves, the scores are mixed on a different scale
+   * and documents close in score may swap. A null document vector has a
+   * cosine of 0 and a distance of 1, and adds the same 1 to both blends.
+   */
+  public void setDotProduct(boolean dotProduct) {
+    this.dotProduct = dotProduct;
+    dbginfo.add("similarity", dotProduct ? "dot" : "distance");
+  }
+
+  public boolean isDotProduct() {
+    return dotProduct;
+  }
+
+  /**
+   * Reads the vectors of the documents from the binary DocValues field
+   * <code>vectorField</code>, filled at index time by
+   * {@link com.searchbox.solr.SenseProjectionProcessorFactory}, instead of
+   * projecting their term vectors. Documents without it, or projected by
+   * another CKB, are still scored from their term vectors.
+   */
+  public void setVectorField(String vectorField) {
+    this.vectorField = vectorField;
+    if (vectorField != null) {
+      dbginfo.add("vectorField", vectorField);
+    }
+  }
+
+  public String getVectorField() {
+    return vectorField;
+  }
+
+  /**
+   * Keeps the unit CKB projections of the documents scored in a
+   * {@link DocumentVectorStore}, so that later searches read them instead of
+   * projecting the term vectors again. For indexes that can not be indexed
+   * again with a vector field; the store grows by the CKB dimension times 4
+   * bytes per document scored.
+   */
+  public void setVectorCache(boolean vectorCache) {
+    this.vectorCache = vectorCache;
+    dbginfo.add("vectorCache", vectorCache);
+  }
+
+  public boolean isVectorCache() {
+    return vectorCache;
+  }
+
+  CognitiveKnowledgeBase getCkb() {
+    return ckb;
+  }
+
+  DoubleFullVector getQueryVector() {
+    return qvector;
+  }
+
+  RealTermFreqVector getQueryTfIdf() {
+    return qtfidf;
+  }
+
+  SparseFloatVector getQueryTfIdfVector() {
+    return qTfIdf;
+  }
+
+  int getHeadDimensions() {
+    return headDimensions;
+  }
+
+  float getQueryTailNorm() {
+    return qTailNorm;
+  }
+
+  /**
+   * @return the id of the last search run with this query, which the score
+   *         caches of the providers are valid for
+   */
+  long getSearchId() {
+    return searchId;
+  }
+
+  TopKThreshold getTopKThreshold() {
+    return topK;
   }
 
   public String getSenseField() {
@@ -6,16 +6,22 @@ package com.searchbox.lucene;
 
 import com.searchbox.math.DoubleFullVector;
 import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.math.SparseFloatVector;
+import com.searchbox.math.VectorKernels;
+import com.searchbox.math.VectorUtils;
 import com.searchbox.sense.CognitiveKnowledgeBase;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.queries.CustomScoreProvider;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 /**
  *
@@ -24,23 +30,94 @@ import java.util.HashMap;
 public class SenseScoreProvider extends CustomScoreProvider {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SenseScoreProvider.class);
+  // margin keeping float rounding of the bound from rejecting a document
+  private static final float BOUND_SLACK = 1e-5f;
+  private static final VectorKernels KERNELS = VectorKernels.get();
 
   private final CognitiveKnowledgeBase ckb;
   private final DoubleFullVector qvector;
   private final RealTermFreqVector qtfidf;
+  private final SparseFloatVector qTfIdf;
   private final float senseWeight;
   private final String senseField;
-  private HashMap<Integer, Float> scoreCache = new HashMap();
+  private final int headDimensions;
+  private final float qTailNorm;
+  private final TopKThreshold topK;
+  private final boolean dotProduct;
+  // vectors projected at index time, null when the query has no vector field
+  private final DocValues.Source vectors;
+  private final long fingerprint;
+  // vectors projected by earlier searches, null when not cached
+  private final DocumentVectorStore.SegmentVectors cache;
+  private final Scratch scratch = SCRATCH.get();
+  private final ScoreCache scoreCache;
+  private final long searchId;
 
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * Buffers of the thread scoring a document, grown as needed and reused for
+   * every document so that scoring allocates nothing per document. They
+   * only hold data within one customScore call.
+   */
+  private static final class Scratch {
+
+    TermsEnum termsEnum;
+    final BytesRef bytes = new BytesRef();
+    int[] termIds = new int[0];
+    float[] freqs = new float[0];
+    float[] weights = new float[0];
+    float[] projection = new float[0];
+    float[] unit = new float[0];
+    // wraps the term ids and tf-idf weights of the document
+    final SparseFloatVector tfIdf = new SparseFloatVector(termIds, weights, 0);
+    // wraps unit for the distance kernels, never asked for its norm
+    DoubleFullVector unitVector = new DoubleFullVector(unit);
+    // scores of the segment being scored by the thread
+    final ScoreCache scores = new ScoreCache();
 
-  SenseScoreProvider(AtomicReaderContext context, String senseField,
-                     CognitiveKnowledgeBase ckb, DoubleFullVector qvector, RealTermFreqVector qtfidf, float ckbWeight) {
+    void ensureTerms(int capacity) {
+      if (termIds.length < capacity) {
+        termIds = ArrayUtil.grow(termIds, capacity);
+        freqs = ArrayUtil.grow(freqs, capacity);
+        weights = ArrayUtil.grow(weights, capacity);
+      }
+    }
+
+    void ensureDimension(int dimension) {
+      if (projection.length != dimension) {
+        projection = new float[dimension];
+        unit = new float[dimension];
+        unitVector = new DoubleFullVector(unit);
+      }
+    }
+  }
+
+
+  SenseScoreProvider(AtomicReaderContext context, SenseQuery query) throws IOException {
     super(context);
-    this.ckb = ckb;
-    this.qvector = qvector;
-    this.senseWeight = ckbWeight;
-    this.senseField = senseField;
-    this.qtfidf = qtfidf;
+    this.ckb = query.getCkb();
+    this.qvector = query.getQueryVector();
+    this.senseWeight = query.getSenseWeight();
+    this.senseField = query.getSenseField();
+    this.qtfidf = query.getQueryTfIdf();
+    this.qTfIdf = query.getQueryTfIdfVector();
+    this.headDimensions = query.getHeadDimensions();
+    this.qTailNorm = query.getQueryTailNorm();
+    this.topK = query.getTopKThreshold();
+    this.dotProduct = query.isDotProduct();
+    DocValues values = query.getVectorField() == null ? null : context.reader().docValues(query.getVectorField());
+    // the in memory source is loaded once per segment and shared by searches
+    this.vectors = values == null ? null : values.getSource();
+    this.fingerprint = ckb.getFingerprint();
+    this.cache = query.isVectorCache() ? DocumentVectorStore.get(context.reader(), senseField, ckb) : null;
+    this.scoreCache = scratch.scores;
+    this.searchId = query.getSearchId();
   }
 
   /**
@@ -67,45 +144,234 @@ public class SenseScoreProvider extends CustomScoreProvider {
   public float customScore(int doc, float subQueryScore, float valSrcScores[]) throws IOException {
 
 
-    Float finalscore = scoreCache.get(doc);
+    // a provider created again for the segment in the same search on this
+    // thread finds the scores of the previous one, any other clears them
+    scoreCache.use(searchId, context.ord);
+    final float cachedScore = scoreCache.get(doc);
     //System.out.println("Custom score on:\t"+doc);
-    if (finalscore != null) {
+    if (!Float.isNaN(cachedScore)) {
       //  System.out.println("Custom score on:\t"+doc+"\tfrom cache!");
-      return finalscore;
+      return cachedScore;
     }
-    Terms terms = context.reader().getTermVector(doc, this.senseField);
-    RealTermFreqVector rtfv = new RealTermFreqVector(terms);
-
-    if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("Evaluating Document with TF size: " + rtfv.getSize());
+    final Scratch s = scratch;
+    final int dimension = ckb.getDimentionality();
+    // documents projected at index time by this CKB are read at once, the
+    // others from their term vector
+    boolean stored = false;
+    if (vectors != null) {
+      vectors.getBytes(doc, s.bytes);
+      stored = SenseVectors.matches(s.bytes, fingerprint, dimension);
     }
+    // then the ones projected by an earlier search, the term vector is only
+    // read if the tf-idf half needs it
+    float cachedNorm = Float.NaN;
+    if (!stored && cache != null && senseWeight != 0.0) {
+      s.ensureDimension(dimension);
+      cachedNorm = cache.read(doc, s.unit);
+    }
+    final boolean cached = !Float.isNaN(cachedNorm);
+    Terms terms = null;
+    int size = 0;
+    if (stored) {
+      s.ensureTerms(SenseVectors.getTfIdfSize(s.bytes, dimension));
+      size = SenseVectors.readTfIdf(s.bytes, dimension, s.termIds, s.weights);
+    } else if (!cached || senseWeight != 1.0) {
+      terms = context.reader().getTermVector(doc, this.senseField);
+      // both halves work on the term ids of the document, looked up once from
+      // the term vector bytes
+      if (terms != null) {
+        s.ensureTerms((int) terms.size());
+        s.termsEnum = terms.iterator(s.termsEnum);
+        size = ckb.getTermIds(s.termsEnum, s.termIds, s.freqs);
+      }
+    }
+    final int[] termIds = s.termIds;
 
-    if (LOGGER.isTraceEnabled()) {
+    if (terms != null && LOGGER.isTraceEnabled()) {
+      RealTermFreqVector rtfv = new RealTermFreqVector(terms);
+      LOGGER.trace("Evaluating Document with TF size: " + rtfv.getSize());
       for (int zz = 0; zz < rtfv.getSize(); zz++) {
         LOGGER.trace("term: |" + rtfv.getTerms()[zz] + "| -- frequ: " + rtfv.getFreqs()[zz]);
       }
     }
 
 
+    // past the k-th best score, the distances a document can have and still
+    // enter the top k are known: their squares bound the accumulations below
+    final float threshold = topK == null ? Float.NEGATIVE_INFINITY : topK.get() - BOUND_SLACK;
+    if (dotProduct) {
+      return dotScore(doc, s, stored, cachedNorm, size, threshold);
+    }
+
     double ckbscore = 0;
     double idfscore = 0;
 
+    if (senseWeight != 1.0) {
+      // stored weights are already divided by the norm
+      final float scale = stored ? 1 : unitScale(ckb.getTfIdf(termIds, s.freqs, size, s.weights));
+      s.tfIdf.reset(termIds, s.weights, size);
+      float limit = Float.POSITIVE_INFINITY;
+      if (threshold != Float.NEGATIVE_INFINITY) {
+        limit = squaredLimit(2 - (threshold - 2 * senseWeight) / (1 - senseWeight));
+      }
+      // terms without idf weigh 0 and add nothing
+      final float squared = s.tfIdf.getSquaredDistance(qTfIdf, scale, limit);
+      idfscore = (float) Math.sqrt(squared);
+      if (squared > limit) {
+        return reject(doc, 0, idfscore);
+      }
+      if (LOGGER.isTraceEnabled())
+        LOGGER.trace("idfscore: " + idfscore);
+    }
     if (senseWeight != 0.0) {
-      DoubleFullVector dvector = ckb.getFullCkbVector(rtfv).getUnitVector();
-      ckbscore = dvector.getDistance(qvector);
+      final float dnorm = unitVector(doc, s, stored, cachedNorm, size);
+      final DoubleFullVector dvector = s.unitVector;
+      final float[] q = qvector.getData();
+      float limit = Float.POSITIVE_INFINITY;
+      if (threshold != Float.NEGATIVE_INFINITY) {
+        limit = squaredLimit((float) ((2 * senseWeight + (1 - senseWeight) * (2 - idfscore) - threshold) / senseWeight));
+      }
+      float head = 0;
+      int from = 0;
+      if (headDimensions > 0 && limit != Float.POSITIVE_INFINITY) {
+        head = dvector.getSquaredDistance(q, 0, headDimensions);
+        // a null projection stays null once normalized
+        final float unitNorm = dnorm == Float.NEGATIVE_INFINITY ? 0 : 1;
+        final float dTail = (float) Math.sqrt(Math.max(0, unitNorm - dvector.getSquaredNorm(0, headDimensions)));
+        final float gap = qTailNorm - dTail;
+        if (head + gap * gap > limit) {
+          if (LOGGER.isTraceEnabled())
+            LOGGER.trace("Rejected on " + headDimensions + " dimensions");
+          return reject(doc, Math.sqrt(head + gap * gap), idfscore);
+        }
+        if (headDimensions % DoubleFullVector.BLOCK == 0) {
+          from = headDimensions;
+        } else {
+          head = 0;
+        }
+      }
+      // carries on the head sum when it ends on a block, so that the score
+      // is the one of getDistance
+      final float squared = dvector.getSquaredDistance(q, from, head, limit);
+      ckbscore = (float) Math.sqrt(squared);
+      if (squared > limit) {
+        return reject(doc, ckbscore, idfscore);
+      }
       if (LOGGER.isTraceEnabled())
         LOGGER.trace("ckbscore: " + ckbscore);
     }
+
+    final float finalscore = (float) (senseWeight * (2 - ckbscore) + (1 - senseWeight) * (2 - idfscore));
+    if (LOGGER.isTraceEnabled())
+      LOGGER.trace("Final score " + finalscore);
+    if (topK != null) {
+      topK.offer(finalscore);
+    }
+    scoreCache.put(doc, finalscore);
+    return finalscore;
+  }
+
+  /**
+   * Fills the unit vector of the scratch with the projection of the document,
+   * from the stored or cached vectors when there are some.
+   *
+   * @return the norm of the projection, negative infinity when null
+   */
+  private float unitVector(int doc, Scratch s, boolean stored, float cachedNorm, int size) {
+    s.ensureDimension(ckb.getDimentionality());
+    if (stored) {
+      SenseVectors.readConcept(s.bytes, s.unit, s.unit.length);
+      return SenseVectors.getConceptNorm(s.bytes);
+    }
+    if (!Float.isNaN(cachedNorm)) {
+      return cachedNorm;
+    }
+    ckb.projectInto(s.termIds, s.freqs, size, s.projection);
+    final float dnorm = VectorUtils.normalizeInto(s.projection, s.unit);
+    if (cache != null) {
+      cache.write(doc, s.unit, dnorm);
+    }
+    return dnorm;
+  }
+
+  private static float unitScale(float norm) {
+    return norm > 0 ? 1 / norm : 0;
+  }
+
+  /**
+   * @return the square of the largest distance <code>limit</code>, -1 when
+   *         no distance is small enough
+   */
+  private static float squaredLimit(float limit) {
+    return limit < 0 ? -1 : limit * limit;
+  }
+
+  /**
+   * Scores a document that can not enter the top k from lower bounds of its
+   * distances, which gives an upper bound of its score.
+   */
+  private float reject(int doc, double ckbDistance, double idfDistance) {
+    return reject(doc, (float) (senseWeight * (2 - ckbDistance) + (1 - senseWeight) * (2 - idfDistance)));
+  }
+
+  private float reject(int doc, float bound) {
+    if (LOGGER.isTraceEnabled())
+      LOGGER.trace("Rejected with bound " + bound);
+    scoreCache.put(doc, bound);
+    return bound;
+  }
+
+  /**
+   * Scores the document by the cosine similarities of its vectors to the unit
+   * query vectors, <code>sw * (1 + cos_ckb) + (1 - sw) * (1 + cos_tfidf)</code>.
+   * Without vectors stored or cached, the projection of the term vector is
+   * not normalized, its dot product with the query is divided by its norm.
+   * The head dimensions bound the CKB cosine from above by
+   * <code>head + |q_tail| * |d_tail|</code>.
+   */
+  private float dotScore(int doc, Scratch s, boolean stored, float cachedNorm, int size, float threshold) {
+    double ckbcos = 0;
+    double idfcos = 0;
     if (senseWeight != 1.0) {
-      RealTermFreqVector dtfidf = ckb.getTfIdfVector(rtfv).getUnitVector();
-      idfscore = dtfidf.getDistance(qtfidf);
+      final float scale = stored ? 1 : unitScale(ckb.getTfIdf(s.termIds, s.freqs, size, s.weights));
+      s.tfIdf.reset(s.termIds, s.weights, size);
+      idfcos = s.tfIdf.dot(qTfIdf) * scale;
       if (LOGGER.isTraceEnabled())
-        LOGGER.trace("idfscore: " + idfscore);
+        LOGGER.trace("idfcos: " + idfcos);
+    }
+    if (senseWeight != 0.0) {
+      final float[] d;
+      if (stored || cache != null) {
+        unitVector(doc, s, stored, cachedNorm, size);
+        d = s.unit;
+      } else {
+        s.ensureDimension(ckb.getDimentionality());
+        ckb.projectInto(s.termIds, s.freqs, size, s.projection);
+        d = s.projection;
+      }
+      final float[] q = qvector.getData();
+      final float squaredNorm = KERNELS.squaredNorm(d, 0, d.length);
+      // a null projection has a null cosine
+      final float inverse = squaredNorm > 0 ? 1 / (float) Math.sqrt(squaredNorm) : 0;
+      if (headDimensions > 0 && threshold != Float.NEGATIVE_INFINITY) {
+        final float head = KERNELS.dot(d, q, 0, headDimensions) * inverse;
+        final float dTail = (float) Math.sqrt(Math.max(0, squaredNorm - KERNELS.squaredNorm(d, 0, headDimensions))) * inverse;
+        final float bound = (float) (senseWeight * (1 + head + qTailNorm * dTail) + (1 - senseWeight) * (1 + idfcos));
+        if (bound < threshold) {
+          if (LOGGER.isTraceEnabled())
+            LOGGER.trace("Rejected on " + headDimensions + " dimensions");
+          return reject(doc, bound);
+        }
+      }
+      ckbcos = KERNELS.dot(d, q, 0, d.length) * inverse;
+      if (LOGGER.isTraceEnabled())
+        LOGGER.trace("ckbcos: " + ckbcos);
     }
 
-    finalscore = (float) (senseWeight * (2 - ckbscore) + (1 - senseWeight) * (2 - idfscore));
-    if (LOGGER.isTraceEnabled())
-      LOGGER.trace("Final score " + finalscore);
+    final float finalscore = (float) (senseWeight * (1 + ckbcos) + (1 - senseWeight) * (1 + idfcos));
+    if (topK != null) {
+      topK.offer(finalscore);
+    }
     scoreCache.put(doc, finalscore);
     return finalscore;
   }
@@ -157,7 +423,7 @@ public class SenseScoreProvider extends CustomScoreProvider {
     float ckbscore = 0;
     float idfscore = 0;
 
-    DoubleFullVector dvector = ckb.getFullCkbVector(rtfv).getUnitVector();
+    DoubleFullVector dvector = ckb.getFullCkbVector(terms).getUnitVector();
     ckbscore = dvector.getDistance(qvector);
     exp.addDetail(new Explanation(ckbscore, "ckb_score"));
 
@@ -165,7 +431,18 @@ public class SenseScoreProvider extends CustomScoreProvider {
     idfscore = dtfidf.getDistance(qtfidf);
     exp.addDetail(new Explanation(idfscore, "tfidf_score"));
 
-    float finalscore = (float) (senseWeight * (2 - ckbscore) + (1 - senseWeight) * (2 - idfscore));
+    float finalscore;
+    if (dotProduct) {
+      final float ckbcos = dvector.dotProduct(qvector.getData());
+      // |d - q|^2 = |d|^2 + 1 - 2 d.q with q of unit norm
+      final float dnorm = dtfidf.getNorm();
+      final float idfcos = (dnorm * dnorm + 1 - idfscore * idfscore) / 2;
+      exp.addDetail(new Explanation(ckbcos, "ckb_cosine"));
+      exp.addDetail(new Explanation(idfcos, "tfidf_cosine"));
+      finalscore = senseWeight * (1 + ckbcos) + (1 - senseWeight) * (1 + idfcos);
+    } else {
+      finalscore = senseWeight * (2 - ckbscore) + (1 - senseWeight) * (2 - idfscore);
+    }
     exp.addDetail(new Explanation(finalscore, "final_score"));
 
     return exp;
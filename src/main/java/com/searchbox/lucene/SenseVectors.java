@@ -0,0 +1,150 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.math.VectorUtils;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary form of the vectors a document is scored with, projected once at
+ * index time and stored in a binary DocValues field. Little endian:
+ * <pre>
+ *   long     fingerprint of the CKB, see CognitiveKnowledgeBase#getFingerprint()
+ *   float    norm of the CKB projection, negative infinity when null
+ *   float    norm of the tf-idf vector
+ *   float[d] unit CKB projection, d the CKB dimension
+ *   (int term id, float unit tf-idf weight)* by increasing term id, without
+ *            the terms weighing 0
+ * </pre>
+ * The vectors are computed with the same arithmetic as the scorer, scores
+ * read from them are the same as from the term vectors.
+ */
+public final class SenseVectors {
+
+  static final int HEADER = 16;
+
+  private SenseVectors() {
+  }
+
+  public static byte[] encode(CognitiveKnowledgeBase ckb, RealTermFreqVector tf) {
+    // term ids in increasing order, like the terms of a term vector
+    Map<Integer, Float> byId = new TreeMap<Integer, Float>();
+    for (int zz = 0; zz < tf.getSize(); zz++) {
+      int termId = ckb.getTermId(tf.getTerms()[zz]);
+      if (termId >= 0) {
+        Float freq = byId.get(termId);
+        byId.put(termId, freq == null ? tf.getFreqs()[zz] : freq + tf.getFreqs()[zz]);
+      }
+    }
+    final int size = byId.size();
+    final int[] termIds = new int[size];
+    final float[] freqs = new float[size];
+    int pos = 0;
+    for (Map.Entry<Integer, Float> e : byId.entrySet()) {
+      termIds[pos] = e.getKey();
+      freqs[pos++] = e.getValue();
+    }
+
+    final int dimension = ckb.getDimentionality();
+    final float[] projection = new float[dimension];
+    final float[] unit = new float[dimension];
+    ckb.projectInto(termIds, freqs, size, projection);
+    final float conceptNorm = VectorUtils.normalizeInto(projection, unit);
+    final float[] weights = new float[size];
+    final float tfIdfNorm = ckb.getTfIdf(termIds, freqs, size, weights);
+    final float scale = tfIdfNorm > 0 ? 1 / tfIdfNorm : 0;
+    int weighted = 0;
+    for (int zz = 0; zz < size; zz++) {
+      if (weights[zz] != 0) {
+        weighted++;
+      }
+    }
+
+    byte[] bytes = new byte[HEADER + 4 * dimension + 8 * weighted];
+    pos = putLong(bytes, 0, ckb.getFingerprint());
+    pos = putInt(bytes, pos, Float.floatToIntBits(conceptNorm));
+    pos = putInt(bytes, pos, Float.floatToIntBits(tfIdfNorm));
+    for (int zz = 0; zz < dimension; zz++) {
+      pos = putInt(bytes, pos, Float.floatToIntBits(unit[zz]));
+    }
+    for (int zz = 0; zz < size; zz++) {
+      if (weights[zz] != 0) {
+        pos = putInt(bytes, pos, termIds[zz]);
+        pos = putInt(bytes, pos, Float.floatToIntBits(weights[zz] * scale));
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return whether <code>bytes</code> hold vectors projected by the CKB
+   *         with <code>fingerprint</code>, false for documents indexed
+   *         without them or with another CKB
+   */
+  static boolean matches(BytesRef bytes, long fingerprint, int dimension) {
+    final int tail = bytes.length - HEADER - 4 * dimension;
+    return tail >= 0 && tail % 8 == 0 && getLong(bytes.bytes, bytes.offset) == fingerprint;
+  }
+
+  static float getConceptNorm(BytesRef bytes) {
+    return Float.intBitsToFloat(getInt(bytes.bytes, bytes.offset + 8));
+  }
+
+  static float getTfIdfNorm(BytesRef bytes) {
+    return Float.intBitsToFloat(getInt(bytes.bytes, bytes.offset + 12));
+  }
+
+  static void readConcept(BytesRef bytes, float[] unit, int dimension) {
+    final byte[] b = bytes.bytes;
+    for (int zz = 0, pos = bytes.offset + HEADER; zz < dimension; zz++, pos += 4) {
+      unit[zz] = Float.intBitsToFloat(getInt(b, pos));
+    }
+  }
+
+  static int getTfIdfSize(BytesRef bytes, int dimension) {
+    return (bytes.length - HEADER - 4 * dimension) / 8;
+  }
+
+  /**
+   * @return the number of terms read to <code>termIds</code> and
+   *         <code>weights</code>
+   */
+  static int readTfIdf(BytesRef bytes, int dimension, int[] termIds, float[] weights) {
+    final byte[] b = bytes.bytes;
+    final int size = getTfIdfSize(bytes, dimension);
+    for (int zz = 0, pos = bytes.offset + HEADER + 4 * dimension; zz < size; zz++, pos += 8) {
+      termIds[zz] = getInt(b, pos);
+      weights[zz] = Float.intBitsToFloat(getInt(b, pos + 4));
+    }
+    return size;
+  }
+
+  private static int putInt(byte[] bytes, int pos, int value) {
+    bytes[pos] = (byte) value;
+    bytes[pos + 1] = (byte) (value >>> 8);
+    bytes[pos + 2] = (byte) (value >>> 16);
+    bytes[pos + 3] = (byte) (value >>> 24);
+    return pos + 4;
+  }
+
+  private static int putLong(byte[] bytes, int pos, long value) {
+    pos = putInt(bytes, pos, (int) value);
+    return putInt(bytes, pos, (int) (value >>> 32));
+  }
+
+  private static int getInt(byte[] bytes, int pos) {
+    return (bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8 | (bytes[pos + 2] & 0xff) << 16
+      | (bytes[pos + 3] & 0xff) << 24;
+  }
+
+  private static long getLong(byte[] bytes, int pos) {
+    return (getInt(bytes, pos) & 0xffffffffL) | (long) getInt(bytes, pos + 4) << 32;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+/**
+ * Running k-th best score of one search, shared by the score providers of
+ * all its segments: a min heap of the k best scores offered so far.
+ */
+final class TopKThreshold {
+
+  private final float[] heap;
+  private int size;
+
+  TopKThreshold(int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    this.heap = new float[k];
+  }
+
+  synchronized void reset() {
+    size = 0;
+  }
+
+  /**
+   * @return the k-th best score so far, negative infinity until k scores
+   *         were offered
+   */
+  synchronized float get() {
+    return size < heap.length ? Float.NEGATIVE_INFINITY : heap[0];
+  }
+
+  synchronized void offer(float score) {
+    if (size < heap.length) {
+      int pos = size++;
+      while (pos > 0) {
+        final int parent = (pos - 1) >>> 1;
+        if (heap[parent] <= score) {
+          break;
+        }
+        heap[pos] = heap[parent];
+        pos = parent;
+      }
+      heap[pos] = score;
+    } else if (score > heap[0]) {
+      int pos = 0;
+      while (true) {
+        int child = 2 * pos + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && heap[child + 1] < heap[child]) {
+          child++;
+        }
+        if (heap[child] >= score) {
+          break;
+        }
+        heap[pos] = heap[child];
+        pos = child;
+      }
+      heap[pos] = score;
+    }
+  }
+}
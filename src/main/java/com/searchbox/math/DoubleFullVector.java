@@ -9,6 +9,12 @@ package com.searchbox.math;
  *
  */
 public class DoubleFullVector {
+
+  /**
+   * Number of dimensions summed together by the distance kernels.
+   */
+  public static final int BLOCK = 16;
+  private static final VectorKernels KERNELS = VectorKernels.get();
   private float[] vector;
   private float norm = -1;
 
@@ -32,13 +38,58 @@ public class DoubleFullVector {
   }
 
   public float getDistance(float vright[]) {
+    return (float) Math.sqrt(getSquaredDistance(vright, 0, 0, Float.POSITIVE_INFINITY));
+  }
+
+  /**
+   * Squared distance to <code>vright</code> over the dimensions
+   * <code>from</code> to <code>to</code>, excluded, summed by blocks of
+   * {@link #BLOCK} dimensions from <code>from</code>.
+   */
+  public float getSquaredDistance(float vright[], int from, int to) {
     float result = 0;
-    float half;
-    for (int zz = 0; zz < vector.length; zz++) {
-      half = vector[zz] - vright[zz];
-      result += half * half;
+    for (int zz = from; zz < to; zz += BLOCK) {
+      result += KERNELS.squaredDistance(vector, vright, zz, Math.min(zz + BLOCK, to));
     }
-    return (float) Math.sqrt(result);
+    return result;
+  }
+
+  /**
+   * Squared distance to <code>vright</code>, abandoned as soon as it exceeds
+   * <code>limit</code>.
+   *
+   * @see #getSquaredDistance(float[], int, float, float)
+   */
+  public float getSquaredDistance(float vright[], float limit) {
+    return getSquaredDistance(vright, 0, 0, limit);
+  }
+
+  /**
+   * Adds the squared distance to <code>vright</code> over the dimensions
+   * from <code>from</code> on to <code>partial</code>, by blocks of
+   * {@link #BLOCK} dimensions. The sum is checked against <code>limit</code>
+   * after every block and returned as soon as it exceeds it, it is then
+   * larger than <code>limit</code> but not the full squared distance.
+   * Continuing from a multiple of {@link #BLOCK} with the sum of the
+   * dimensions before it gives the same sum as {@link #getDistance(float[])}.
+   */
+  public float getSquaredDistance(float vright[], int from, float partial, float limit) {
+    float result = partial;
+    for (int zz = from; zz < vector.length; zz += BLOCK) {
+      result += KERNELS.squaredDistance(vector, vright, zz, Math.min(zz + BLOCK, vector.length));
+      if (result > limit) {
+        return result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Squared norm over the dimensions <code>from</code> to <code>to</code>,
+   * excluded.
+   */
+  public float getSquaredNorm(int from, int to) {
+    return KERNELS.squaredNorm(vector, from, to);
   }
 
   public int getDimension() {
@@ -50,11 +101,7 @@ public class DoubleFullVector {
   }
 
   public float dotProduct(final float[] weights) {
-    float result = 0;
-    for (int zz = 0; zz < vector.length; zz++) {
-      result += vector[zz] * weights[zz];
-    }
-    return result;
+    return KERNELS.dot(vector, weights, 0, vector.length);
   }
 
   public DoubleFullVector getSubVector(int start, int end) {
@@ -66,10 +113,10 @@ public class DoubleFullVector {
   }
 
   public DoubleFullVector getUnitVector() {
-    float lnorm = getNorm();
+    final float inverse = 1.0f / getNorm();
     float[] out = new float[vector.length];
     for (int zz = 0; zz < vector.length; zz++) {
-      out[zz] = vector[zz] * 1.0f / lnorm;
+      out[zz] = vector[zz] * inverse;
     }
     return new DoubleFullVector(out);
   }
@@ -175,49 +175,44 @@ public class RealTermFreqVector {
   }
 
   public float getDistance(final RealTermFreqVector other) {
+    // only the first size entries of the arrays belong to the vectors
+    return (float) Math.sqrt(getSquaredDistance(other, Float.POSITIVE_INFINITY));
+  }
+
+  /**
+   * Squared distance to <code>other</code>, both sorted by term. The merge
+   * stops as soon as the sum exceeds <code>limit</code>, the sum returned is
+   * then larger than <code>limit</code> but not the full squared distance.
+   */
+  public float getSquaredDistance(final RealTermFreqVector other, final float limit) {
+    final String[] termsRight = other.getTerms();
+    final float[] freqsRight = other.getFreqs();
+    final int sizeRight = other.getSize();
     float distance = 0;
-    float tempval = 0;
-    int greaterorless;
-    String terms_right[] = other.getTerms();
-    float freqs_right[] = other.getFreqs();
-    int size_right = other.getSize();
-    int spotleft = terms.length == 0 ? java.lang.Integer.MAX_VALUE : 0;
-    int spotright = terms_right.length == 0 ? java.lang.Integer.MAX_VALUE : 0;
-
-    while (true) {
-      if (spotleft >= size) {
-        // finish right side
-        for (; spotright < terms_right.length; spotright++) {
-          distance += freqs_right[spotright] * freqs_right[spotright];
-        }
-        break;
-      }
-
-      if (spotright >= size_right) {
-        for (; spotleft < terms.length; spotleft++) {
-          distance += freqs[spotleft] * freqs[spotleft];
-        }
-
-        break;
+    int left = 0;
+    int right = 0;
+    while (left < size && right < sizeRight) {
+      final int cmp = terms[left].compareTo(termsRight[right]);
+      float delta;
+      if (cmp < 0) {
+        delta = freqs[left++];
+      } else if (cmp > 0) {
+        delta = freqsRight[right++];
+      } else {
+        delta = freqs[left++] - freqsRight[right++];
       }
-
-      greaterorless = terms[spotleft].compareTo(terms_right[spotright]);
-      if (greaterorless < 0) {
-        distance += freqs[spotleft] * freqs[spotleft];
-        spotleft++;
-      } else if (greaterorless > 0) {
-        distance += freqs_right[spotright] * freqs_right[spotright];
-        spotright++;
-      } else { // right and left the same
-        tempval = freqs[spotleft] - freqs_right[spotright];
-        distance += tempval * tempval;
-        spotleft++;
-        spotright++;
+      distance += delta * delta;
+      if (distance > limit) {
+        return distance;
       }
-
-
     }
-    return (float) Math.sqrt(distance);
+    for (; left < size; left++) {
+      distance += freqs[left] * freqs[left];
+    }
+    for (; right < sizeRight; right++) {
+      distance += freqsRight[right] * freqsRight[right];
+    }
+    return distance;
   }
 
   public RealTermFreqVector getUnitVector() {
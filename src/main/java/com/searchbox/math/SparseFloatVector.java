@@ -0,0 +1,114 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.math;
+
+/**
+ * Sparse vector keyed by integer ids, e.g. CKB term ids: the first
+ * <code>size</code> entries of an id array sorted in increasing order and of
+ * the matching weight array. The arrays are not copied, so a vector can wrap
+ * buffers reused from one document to the next.
+ * <p/>
+ * The merges below advance both sides with conditional increments rather
+ * than a three way branch on the id comparison, which the JIT compiles to
+ * conditional moves.
+ */
+public class SparseFloatVector {
+
+  private int[] ids;
+  private float[] weights;
+  private int size;
+
+  public SparseFloatVector(int[] ids, float[] weights, int size) {
+    reset(ids, weights, size);
+  }
+
+  /**
+   * Wraps other arrays, without allocating.
+   */
+  public void reset(int[] ids, float[] weights, int size) {
+    this.ids = ids;
+    this.weights = weights;
+    this.size = size;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int[] getIds() {
+    return ids;
+  }
+
+  public float[] getWeights() {
+    return weights;
+  }
+
+  public float getSquaredNorm() {
+    float norm = 0;
+    for (int zz = 0; zz < size; zz++) {
+      norm += weights[zz] * weights[zz];
+    }
+    return norm;
+  }
+
+  /**
+   * Sum of the products of the weights of the ids both vectors have.
+   */
+  public float dot(final SparseFloatVector other) {
+    final int[] ids = this.ids;
+    final float[] weights = this.weights;
+    final int[] idsRight = other.ids;
+    final float[] weightsRight = other.weights;
+    final int sizeRight = other.size;
+    float dot = 0;
+    int left = 0;
+    int right = 0;
+    while (left < size && right < sizeRight) {
+      final int a = ids[left];
+      final int b = idsRight[right];
+      dot += a == b ? weights[left] * weightsRight[right] : 0;
+      left += a <= b ? 1 : 0;
+      right += b <= a ? 1 : 0;
+    }
+    return dot;
+  }
+
+  /**
+   * Squared euclidean distance between this vector multiplied by
+   * <code>scale</code> and <code>other</code>. The merge stops as soon as the
+   * sum exceeds <code>limit</code>, the sum returned is then larger than
+   * <code>limit</code> but not the full squared distance.
+   */
+  public float getSquaredDistance(final SparseFloatVector other, final float scale, final float limit) {
+    final int[] ids = this.ids;
+    final float[] weights = this.weights;
+    final int[] idsRight = other.ids;
+    final float[] weightsRight = other.weights;
+    final int sizeRight = other.size;
+    float distance = 0;
+    int left = 0;
+    int right = 0;
+    while (left < size && right < sizeRight) {
+      final int a = ids[left];
+      final int b = idsRight[right];
+      // an id missing on one side contributes the weight of the other alone
+      final float delta = (a <= b ? weights[left] * scale : 0) - (b <= a ? weightsRight[right] : 0);
+      distance += delta * delta;
+      if (distance > limit) {
+        return distance;
+      }
+      left += a <= b ? 1 : 0;
+      right += b <= a ? 1 : 0;
+    }
+    for (; left < size; left++) {
+      final float delta = weights[left] * scale;
+      distance += delta * delta;
+    }
+    for (; right < sizeRight; right++) {
+      distance += weightsRight[right] * weightsRight[right];
+    }
+    return distance;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.math;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reductions over float vectors run for every scored document. The plain
+ * loops add every product to a single accumulator, each addition waiting for
+ * the previous one; the unrolled kernels keep four independent accumulators
+ * so that the additions overlap in the pipeline. Their results may differ
+ * from the plain loops in the last bits since the sums are grouped
+ * differently.
+ * <p/>
+ * The kernels are selected once with the system property
+ * <code>searchbox.vectorKernels</code>: <code>unrolled</code> (default) or
+ * <code>scalar</code>.
+ */
+public abstract class VectorKernels {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(VectorKernels.class);
+  public static final String PROPERTY = "searchbox.vectorKernels";
+  private static final VectorKernels INSTANCE = select(System.getProperty(PROPERTY));
+
+  /**
+   * @return the kernels selected for this JVM
+   */
+  public static VectorKernels get() {
+    return INSTANCE;
+  }
+
+  static VectorKernels select(String name) {
+    if (name == null || name.equals("unrolled")) {
+      return unrolled();
+    }
+    if (name.equals("scalar")) {
+      LOGGER.info("Using scalar vector kernels");
+      return scalar();
+    }
+    LOGGER.warn("Unknown " + PROPERTY + " " + name + ", using unrolled vector kernels");
+    return unrolled();
+  }
+
+  public static VectorKernels scalar() {
+    return new Scalar();
+  }
+
+  public static VectorKernels unrolled() {
+    return new Unrolled();
+  }
+
+  /**
+   * Squared euclidean distance between <code>a</code> and <code>b</code> over
+   * the dimensions <code>from</code> to <code>to</code>, excluded.
+   */
+  public abstract float squaredDistance(float[] a, float[] b, int from, int to);
+
+  public abstract float dot(float[] a, float[] b, int from, int to);
+
+  public abstract float squaredNorm(float[] a, int from, int to);
+
+  /**
+   * One accumulator, the loops the vectors always used.
+   */
+  static final class Scalar extends VectorKernels {
+
+    @Override
+    public float squaredDistance(float[] a, float[] b, int from, int to) {
+      float result = 0;
+      for (int i = from; i < to; i++) {
+        final float half = a[i] - b[i];
+        result += half * half;
+      }
+      return result;
+    }
+
+    @Override
+    public float dot(float[] a, float[] b, int from, int to) {
+      float result = 0;
+      for (int i = from; i < to; i++) {
+        result += a[i] * b[i];
+      }
+      return result;
+    }
+
+    @Override
+    public float squaredNorm(float[] a, int from, int to) {
+      float result = 0;
+      for (int i = from; i < to; i++) {
+        result += a[i] * a[i];
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Four accumulators over consecutive dimensions, summed pairwise at the end.
+   */
+  static final class Unrolled extends VectorKernels {
+
+    @Override
+    public float squaredDistance(float[] a, float[] b, int from, int to) {
+      float s0 = 0;
+      float s1 = 0;
+      float s2 = 0;
+      float s3 = 0;
+      int i = from;
+      for (final int end = to - 3; i < end; i += 4) {
+        final float d0 = a[i] - b[i];
+        final float d1 = a[i + 1] - b[i + 1];
+        final float d2 = a[i + 2] - b[i + 2];
+        final float d3 = a[i + 3] - b[i + 3];
+        s0 += d0 * d0;
+        s1 += d1 * d1;
+        s2 += d2 * d2;
+        s3 += d3 * d3;
+      }
+      for (; i < to; i++) {
+        final float d = a[i] - b[i];
+        s0 += d * d;
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float dot(float[] a, float[] b, int from, int to) {
+      float s0 = 0;
+      float s1 = 0;
+      float s2 = 0;
+      float s3 = 0;
+      int i = from;
+      for (final int end = to - 3; i < end; i += 4) {
+        s0 += a[i] * b[i];
+        s1 += a[i + 1] * b[i + 1];
+        s2 += a[i + 2] * b[i + 2];
+        s3 += a[i + 3] * b[i + 3];
+      }
+      for (; i < to; i++) {
+        s0 += a[i] * b[i];
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float squaredNorm(float[] a, int from, int to) {
+      float s0 = 0;
+      float s1 = 0;
+      float s2 = 0;
+      float s3 = 0;
+      int i = from;
+      for (final int end = to - 3; i < end; i += 4) {
+        s0 += a[i] * a[i];
+        s1 += a[i + 1] * a[i + 1];
+        s2 += a[i + 2] * a[i + 2];
+        s3 += a[i + 3] * a[i + 3];
+      }
+      for (; i < to; i++) {
+        s0 += a[i] * a[i];
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+  }
+}
@@ -15,10 +15,7 @@ public class VectorUtils {
 //    }
 
   public static float calculateNorm(final float[] vector) {
-    float norm = 0;
-    for (int zz = 0; zz < vector.length; zz++) {
-      norm += vector[zz] * vector[zz];
-    }
+    final float norm = VectorKernels.get().squaredNorm(vector, 0, vector.length);
     if (norm == 0.0) {
       return Float.NEGATIVE_INFINITY;
     } else {
@@ -26,6 +23,21 @@ public class VectorUtils {
     }
   }
 
+  /**
+   * Writes <code>vector</code> divided by its norm to <code>out</code>, as
+   * {@link DoubleFullVector#getUnitVector()} does without allocating.
+   *
+   * @return the norm of <code>vector</code>, as {@link #calculateNorm(float[])}
+   */
+  public static float normalizeInto(final float[] vector, final float[] out) {
+    final float norm = calculateNorm(vector);
+    final float inverse = 1.0f / norm;
+    for (int zz = 0; zz < vector.length; zz++) {
+      out[zz] = vector[zz] * inverse;
+    }
+    return norm;
+  }
+
   public static float calculateNorm(final int[] v) {
     float norm = 0;
     for (int each : v) {
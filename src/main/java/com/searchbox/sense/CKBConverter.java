@@ -0,0 +1,52 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import com.searchbox.utils.SystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts the text CKB files read by
+ * {@link CognitiveKnowledgeBase#loadSparseCKB} into the binary format opened
+ * by {@link CognitiveKnowledgeBase#loadBinaryCKB}, so the slow parse happens
+ * once at build time instead of on every core load.
+ * <pre>
+ *   java -cp searchbox-sense.jar:... com.searchbox.sense.CKBConverter \
+ *     pubmed.tdic pubmed.cache pubmed.idflog pubmed.ckb
+ * </pre>
+ */
+public class CKBConverter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CKBConverter.class);
+
+  public static void main(String... args) throws IOException {
+    if (args.length != 4) {
+      System.err.println("Usage: CKBConverter <dictionaryFile> <modelFile> <idfFile> <binaryFile>");
+      System.exit(1);
+    }
+    convert(new File(args[0]), new File(args[1]), new File(args[2]), new File(args[3]));
+  }
+
+  /**
+   * Reads the three text files once and writes them as one binary CKB. The
+   * binary file replaces <code>binaryFile</code> only once complete, so a
+   * core that has the previous version mapped keeps using it until reloaded.
+   */
+  public static void convert(File dictionaryFile, File modelFile, File idfFile, File binaryFile) throws IOException {
+    long start = System.currentTimeMillis();
+    CKBData data = TextCKBReader.read(dictionaryFile, modelFile, idfFile);
+    LOGGER.info("Parsed text CKB in " + (System.currentTimeMillis() - start) + "ms. " + SystemUtils.getMemoryUsage());
+
+    start = System.currentTimeMillis();
+    CKBFormat.Header header = CKBFormat.write(binaryFile, data);
+    LOGGER.info("Wrote " + binaryFile.getPath() + " (" + binaryFile.length() + " bytes) in "
+      + (System.currentTimeMillis() - start) + "ms: " + header.termCount + " terms, dimension "
+      + header.dimension + ", " + header.nnz + " values, checksum " + Long.toHexString(header.checksum));
+  }
+}
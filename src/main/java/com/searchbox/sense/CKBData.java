@@ -0,0 +1,102 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import java.util.Arrays;
+
+/**
+ * In-memory CKB in compressed sparse row form. Terms are unique and sorted
+ * in unsigned UTF-8 byte order, the term id of a term is its position in
+ * <code>terms</code> and row <code>i</code> is stored at
+ * <code>columns/values[rowOffsets[i] .. rowOffsets[i + 1])</code>.
+ */
+final class CKBData {
+
+  final String[] terms;
+  final int[] rowOffsets;
+  final int[] columns;
+  final float[] values;
+  final float[] idf;
+  final int dimension;
+
+  CKBData(String[] terms, int[] rowOffsets, int[] columns, float[] values, float[] idf, int dimension) {
+    this.terms = terms;
+    this.rowOffsets = rowOffsets;
+    this.columns = columns;
+    this.values = values;
+    this.idf = idf;
+    this.dimension = dimension;
+  }
+
+  int getNonZeroCount() {
+    return rowOffsets[terms.length];
+  }
+
+  /**
+   * Sum of the squared values of the model.
+   */
+  double getSquaredMass() {
+    double mass = 0;
+    for (int i = 0, nnz = getNonZeroCount(); i < nnz; i++) {
+      mass += (double) values[i] * values[i];
+    }
+    return mass;
+  }
+
+  /**
+   * Copy of this model without the values smaller than
+   * <code>threshold</code> in magnitude nor the columns from
+   * <code>maxDimensions</code> on, 0 keeping all of them.
+   */
+  CKBData prune(float threshold, int maxDimensions) {
+    final int dim = maxDimensions > 0 && maxDimensions < dimension ? maxDimensions : dimension;
+    final int nnz = getNonZeroCount();
+    final int[] prunedOffsets = new int[rowOffsets.length];
+    int[] prunedColumns = new int[nnz];
+    float[] prunedValues = new float[nnz];
+    int pos = 0;
+    for (int t = 0; t < terms.length; t++) {
+      for (int i = rowOffsets[t], end = rowOffsets[t + 1]; i < end; i++) {
+        if (columns[i] < dim && Math.abs(values[i]) >= threshold) {
+          prunedColumns[pos] = columns[i];
+          prunedValues[pos++] = values[i];
+        }
+      }
+      prunedOffsets[t + 1] = pos;
+    }
+    return new CKBData(terms, prunedOffsets, Arrays.copyOf(prunedColumns, pos), Arrays.copyOf(prunedValues, pos),
+      idf, dim);
+  }
+
+  /**
+   * Reads the rows of another store, e.g. a memory mapped one, back into
+   * compressed sparse rows. Zero values are dropped.
+   */
+  static CKBData copyOf(CKBStore store, String[] terms, int dimension) {
+    final long nnz = store.getNonZeroCount();
+    if (nnz > Integer.MAX_VALUE) {
+      throw new RuntimeException("CKB with " + nnz + " values can not be copied on the heap");
+    }
+    int[] rowOffsets = new int[terms.length + 1];
+    int[] columns = new int[(int) nnz];
+    float[] values = new float[(int) nnz];
+    float[] idf = new float[terms.length];
+    float[] row = new float[dimension];
+    int pos = 0;
+    for (int t = 0; t < terms.length; t++) {
+      store.project(t, 1f, row);
+      for (int c = 0; c < dimension; c++) {
+        if (row[c] != 0f) {
+          columns[pos] = c;
+          values[pos++] = row[c];
+          row[c] = 0f;
+        }
+      }
+      rowOffsets[t + 1] = pos;
+      idf[t] = store.getIdf(t);
+    }
+    return new CKBData(terms, rowOffsets, Arrays.copyOf(columns, pos), Arrays.copyOf(values, pos), idf, dimension);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.util.AbstractList;
+import java.util.Collection;
+
+/**
+ * Maps the terms of a CKB to dense term ids <code>0 .. size() - 1</code>. Ids
+ * follow the unsigned byte order of the UTF-8 terms, the order in which Lucene
+ * enumerates terms. Rows, idf and every other per-term table of the CKB are
+ * indexed by these ids.
+ */
+abstract class CKBDictionary {
+
+  abstract int size();
+
+  /**
+   * @return the id of <code>term</code>, or -1 if it is not in the dictionary
+   */
+  abstract int getTermId(BytesRef term);
+
+  int getTermId(String term) {
+    return getTermId(new BytesRef(term));
+  }
+
+  abstract String getTerm(int termId);
+
+  /**
+   * Approximate number of bytes held by the dictionary.
+   */
+  abstract long sizeInBytes();
+
+  /**
+   * @return the part of {@link #sizeInBytes()} mapped from a file rather than
+   *         held on the heap
+   */
+  long mappedBytes() {
+    return 0;
+  }
+
+  Collection<String> getTerms() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return getTerm(index);
+      }
+
+      @Override
+      public int size() {
+        return CKBDictionary.this.size();
+      }
+    };
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Binary CKB file layout. All numbers are little endian.
+ * <pre>
+ *   header         HEADER_SIZE bytes
+ *                  int magic, int version, int flags, int termCount,
+ *                  int dimension, int reserved, long nnz, long checksum,
+ *                  then at SECTION_TABLE one (long offset, long length)
+ *                  pair for each of the MAX_SECTIONS sections
+ *   term offsets   int[termCount + 1], start of each term in term bytes
+ *   term bytes     UTF-8 terms, sorted in unsigned byte order
+ *   row offsets    long[termCount + 1], CSR row start of each term
+ *   columns        int[nnz]
+ *   values         float[nnz]
+ *   idf            float[termCount], NaN for terms without idf
+ *   term norms     float[termCount], norm of each row; optional, files
+ *                  written before it have an empty slot
+ * </pre>
+ * Every section starts on an 8 byte boundary. The term id of a term is its
+ * position in the sorted dictionary. Unused section slots are zero and are
+ * reserved for optional sections. When FLAG_CHECKSUM is set the checksum is
+ * the CRC32 of every byte following the header.
+ */
+final class CKBFormat {
+
+  static final int MAGIC = 0x53434B42;
+  static final int VERSION = 1;
+  static final int MAX_SECTIONS = 8;
+  static final int SECTION_TABLE = 64;
+  static final int HEADER_SIZE = SECTION_TABLE + MAX_SECTIONS * 16;
+
+  static final int FLAG_CHECKSUM = 1;
+
+  static final int TERM_OFFSETS = 0;
+  static final int TERM_BYTES = 1;
+  static final int ROW_OFFSETS = 2;
+  static final int COLUMNS = 3;
+  static final int VALUES = 4;
+  static final int IDF = 5;
+  static final int TERM_NORMS = 6;
+
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  private CKBFormat() {
+  }
+
+  static final class Header {
+
+    int version;
+    int flags;
+    int termCount;
+    int dimension;
+    long nnz;
+    long checksum;
+    final long[] sectionOffset = new long[MAX_SECTIONS];
+    final long[] sectionLength = new long[MAX_SECTIONS];
+
+    private void write(ByteBuffer buffer) {
+      buffer.putInt(MAGIC);
+      buffer.putInt(version);
+      buffer.putInt(flags);
+      buffer.putInt(termCount);
+      buffer.putInt(dimension);
+      buffer.putInt(0);
+      buffer.putLong(nnz);
+      buffer.putLong(checksum);
+      buffer.position(SECTION_TABLE);
+      for (int i = 0; i < MAX_SECTIONS; i++) {
+        buffer.putLong(sectionOffset[i]);
+        buffer.putLong(sectionLength[i]);
+      }
+    }
+  }
+
+  static Header readHeader(FileChannel channel) throws IOException {
+    final long fileSize = channel.size();
+    if (fileSize < HEADER_SIZE) {
+      throw new IOException("File too small to be a binary CKB: " + fileSize + " bytes");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file while reading CKB header");
+      }
+    }
+    buffer.flip();
+
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("Not a binary CKB file (bad magic number)");
+    }
+    Header header = new Header();
+    header.version = buffer.getInt();
+    if (header.version < 1 || header.version > VERSION) {
+      throw new IOException("Unsupported binary CKB version " + header.version + ", this build reads up to " + VERSION);
+    }
+    header.flags = buffer.getInt();
+    header.termCount = buffer.getInt();
+    header.dimension = buffer.getInt();
+    buffer.getInt();
+    header.nnz = buffer.getLong();
+    header.checksum = buffer.getLong();
+    buffer.position(SECTION_TABLE);
+    for (int i = 0; i < MAX_SECTIONS; i++) {
+      header.sectionOffset[i] = buffer.getLong();
+      header.sectionLength[i] = buffer.getLong();
+      if (header.sectionOffset[i] < 0 || header.sectionLength[i] < 0
+        || header.sectionOffset[i] + header.sectionLength[i] > fileSize) {
+        throw new IOException("Section " + i + " of binary CKB lies outside of the file, file is truncated?");
+      }
+    }
+    if (header.termCount < 0 || header.dimension <= 0 || header.nnz < 0) {
+      throw new IOException("Corrupted binary CKB header: terms=" + header.termCount
+        + ", dimension=" + header.dimension + ", nnz=" + header.nnz);
+    }
+    checkLength(header, TERM_OFFSETS, 4L * (header.termCount + 1));
+    checkLength(header, ROW_OFFSETS, 8L * (header.termCount + 1));
+    checkLength(header, COLUMNS, 4L * header.nnz);
+    checkLength(header, VALUES, 4L * header.nnz);
+    checkLength(header, IDF, 4L * header.termCount);
+    if (header.sectionLength[TERM_NORMS] != 0) {
+      checkLength(header, TERM_NORMS, 4L * header.termCount);
+    }
+    return header;
+  }
+
+  private static void checkLength(Header header, int section, long expected) throws IOException {
+    if (header.sectionLength[section] != expected) {
+      throw new IOException("Section " + section + " of binary CKB has " + header.sectionLength[section]
+        + " bytes, expected " + expected);
+    }
+  }
+
+  /**
+   * Computes the CRC32 of everything following the header.
+   */
+  static long checksum(FileChannel channel) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    long position = HEADER_SIZE;
+    int read;
+    while ((read = channel.read(buffer, position)) > 0) {
+      crc.update(buffer.array(), 0, read);
+      position += read;
+      buffer.clear();
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Checks the file against the checksum of its header.
+   *
+   * @throws IOException if the file has no checksum or does not match it
+   */
+  static void verify(FileChannel channel, Header header) throws IOException {
+    if ((header.flags & FLAG_CHECKSUM) == 0) {
+      throw new IOException("Binary CKB was written without a checksum");
+    }
+    final long actual = checksum(channel);
+    if (actual != header.checksum) {
+      throw new IOException("Binary CKB checksum mismatch, expected " + Long.toHexString(header.checksum)
+        + " but file has " + Long.toHexString(actual));
+    }
+  }
+
+  /**
+   * Writes <code>data</code> as a binary CKB and seals it with its checksum.
+   * The file is written next to <code>file</code> and renamed over it once
+   * complete, so a core still mapping the previous version keeps reading it
+   * and a crash never leaves a truncated CKB.
+   *
+   * @return the header that was written
+   */
+  static Header write(File file, CKBData data) throws IOException {
+    final String[] terms = data.terms;
+    final int[] rowOffsets = data.rowOffsets;
+    final int[] columns = data.columns;
+    final float[] values = data.values;
+    final float[] idf = data.idf;
+    final int termCount = terms.length;
+    if (rowOffsets.length != termCount + 1 || idf.length != termCount) {
+      throw new IllegalArgumentException("Row offsets and idf must be aligned with the dictionary");
+    }
+    final int nnz = rowOffsets[termCount];
+
+    BytesRef[] encoded = new BytesRef[termCount];
+    int[] termOffsets = new int[termCount + 1];
+    for (int i = 0; i < termCount; i++) {
+      encoded[i] = new BytesRef(terms[i]);
+      if (i > 0 && encoded[i - 1].compareTo(encoded[i]) >= 0) {
+        throw new IllegalArgumentException("Dictionary is not sorted or has duplicates at term " + terms[i]);
+      }
+      termOffsets[i + 1] = termOffsets[i] + encoded[i].length;
+    }
+
+    Header header = new Header();
+    header.version = VERSION;
+    header.termCount = termCount;
+    header.dimension = data.dimension;
+    header.nnz = nnz;
+    long offset = HEADER_SIZE;
+    offset = layout(header, TERM_OFFSETS, offset, 4L * (termCount + 1));
+    offset = layout(header, TERM_BYTES, offset, termOffsets[termCount]);
+    offset = layout(header, ROW_OFFSETS, offset, 8L * (termCount + 1));
+    offset = layout(header, COLUMNS, offset, 4L * nnz);
+    offset = layout(header, VALUES, offset, 4L * nnz);
+    offset = layout(header, IDF, offset, 4L * termCount);
+    layout(header, TERM_NORMS, offset, 4L * termCount);
+    final float[] termNorms = CKBStore.computeTermNorms(new SparseCKBStore(data), termCount, data.dimension);
+
+    final File tmp = new File(file.getPath() + ".tmp");
+    boolean renamed = false;
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      raf.setLength(0);
+      SectionOutput out = new SectionOutput(raf.getChannel());
+
+      out.begin(0);
+      header.write(out.buffer);
+      out.end();
+
+      out.begin(header.sectionOffset[TERM_OFFSETS]);
+      for (int i = 0; i <= termCount; i++) {
+        out.ensure(4).putInt(termOffsets[i]);
+      }
+      out.end();
+
+      out.begin(header.sectionOffset[TERM_BYTES]);
+      for (int i = 0; i < termCount; i++) {
+        out.putBytes(encoded[i]);
+      }
+      out.end();
+
+      out.begin(header.sectionOffset[ROW_OFFSETS]);
+      for (int i = 0; i <= termCount; i++) {
+        out.ensure(8).putLong(rowOffsets[i]);
+      }
+      out.end();
+
+      out.begin(header.sectionOffset[COLUMNS]);
+      for (int i = 0; i < nnz; i++) {
+        out.ensure(4).putInt(columns[i]);
+      }
+      out.end();
+
+      out.begin(header.sectionOffset[VALUES]);
+      for (int i = 0; i < nnz; i++) {
+        out.ensure(4).putFloat(values[i]);
+      }
+      out.end();
+
+      out.begin(header.sectionOffset[IDF]);
+      for (int i = 0; i < termCount; i++) {
+        out.ensure(4).putFloat(idf[i]);
+      }
+      out.end();
+
+      out.begin(header.sectionOffset[TERM_NORMS]);
+      for (int i = 0; i < termCount; i++) {
+        out.ensure(4).putFloat(termNorms[i]);
+      }
+      out.end();
+
+      header.flags |= FLAG_CHECKSUM;
+      header.checksum = checksum(raf.getChannel());
+      out.begin(0);
+      header.write(out.buffer);
+      out.end();
+
+      raf.getChannel().force(true);
+      raf.close();
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+      renamed = true;
+    } finally {
+      raf.close();
+      if (!renamed) {
+        tmp.delete();
+      }
+    }
+    return header;
+  }
+
+  private static long layout(Header header, int section, long offset, long length) {
+    header.sectionOffset[section] = offset;
+    header.sectionLength[section] = length;
+    return (offset + length + 7) & ~7L;
+  }
+
+  /**
+   * Buffered sequential writer for one section at a time.
+   */
+  private static final class SectionOutput {
+
+    final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final FileChannel channel;
+
+    SectionOutput(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void begin(long offset) throws IOException {
+      channel.position(offset);
+      buffer.clear();
+    }
+
+    ByteBuffer ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        drain();
+      }
+      return buffer;
+    }
+
+    void putBytes(BytesRef bytes) throws IOException {
+      if (bytes.length > buffer.remaining()) {
+        drain();
+      }
+      if (bytes.length > buffer.remaining()) {
+        ByteBuffer big = ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length);
+        while (big.hasRemaining()) {
+          channel.write(big);
+        }
+        return;
+      }
+      buffer.put(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    void end() throws IOException {
+      drain();
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+/**
+ * How a CKB is held in memory and loaded, see
+ * {@link CognitiveKnowledgeBase#loadTextCKB} and
+ * {@link CognitiveKnowledgeBase#loadBinaryCKB}.
+ */
+public class CKBLoadOptions {
+
+  private CognitiveKnowledgeBase.Type type = CognitiveKnowledgeBase.Type.SPARSE;
+  private CognitiveKnowledgeBase.Quantization quantization = CognitiveKnowledgeBase.Quantization.NONE;
+  private boolean verifyChecksum = false;
+  private int parseThreads = 1;
+  private float pruneThreshold = 0f;
+  private int maxDimensions = 0;
+
+  public CognitiveKnowledgeBase.Type getType() {
+    return type;
+  }
+
+  public void setType(CognitiveKnowledgeBase.Type type) {
+    this.type = type;
+  }
+
+  public CognitiveKnowledgeBase.Quantization getQuantization() {
+    return quantization;
+  }
+
+  public void setQuantization(CognitiveKnowledgeBase.Quantization quantization) {
+    this.quantization = quantization;
+  }
+
+  /**
+   * Whether the checksum of a binary CKB is verified when it is opened.
+   */
+  public boolean isVerifyChecksum() {
+    return verifyChecksum;
+  }
+
+  public void setVerifyChecksum(boolean verifyChecksum) {
+    this.verifyChecksum = verifyChecksum;
+  }
+
+  /**
+   * Number of threads parsing the model file of a text CKB.
+   */
+  public int getParseThreads() {
+    return parseThreads;
+  }
+
+  public void setParseThreads(int parseThreads) {
+    this.parseThreads = parseThreads;
+  }
+
+  /**
+   * Values smaller than this in magnitude are dropped from the model when it
+   * is loaded; 0 keeps all of them.
+   */
+  public float getPruneThreshold() {
+    return pruneThreshold;
+  }
+
+  public void setPruneThreshold(float pruneThreshold) {
+    this.pruneThreshold = pruneThreshold;
+  }
+
+  /**
+   * Number of leading dimensions of the model kept when it is loaded; 0
+   * keeps all of them.
+   */
+  public int getMaxDimensions() {
+    return maxDimensions;
+  }
+
+  public void setMaxDimensions(int maxDimensions) {
+    this.maxDimensions = maxDimensions;
+  }
+
+  boolean isPruning() {
+    return pruneThreshold > 0 || maxDimensions > 0;
+  }
+
+  @Override
+  public String toString() {
+    return "type=" + type + ", quantization=" + quantization + ", verifyChecksum=" + verifyChecksum
+      + ", parseThreads=" + parseThreads + ", pruneThreshold=" + pruneThreshold + ", maxDimensions=" + maxDimensions;
+  }
+}
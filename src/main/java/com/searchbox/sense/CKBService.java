@@ -10,65 +10,248 @@ import org.slf4j.LoggerFactory;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
- *
- *
+ * JVM wide registry of resident CKB models, so that every core and handler
+ * using the same model shares one copy. Models are keyed by the canonical
+ * path of their files and by the checksum of a binary CKB (size and
+ * modification time of text files), plus the storage options changing their
+ * in-memory form. Each {@link #acquireBinary} or {@link #acquireText} returns
+ * a CKB holding a reference to the shared model under its own name and
+ * parameters; the model is dropped from the registry once every such CKB has
+ * been {@link #release released}. Queries still holding a released CKB keep
+ * working, the model is freed by the garbage collector after them.
+ * <p/>
+ * The service is bound in JNDI under <code>searchbox/bean/CKBService</code>,
+ * so webapps and cores loaded by different class loaders find the same
+ * instance, provided this class itself comes from a shared class loader
+ * (e.g. the jar is in the solr sharedLib or the container lib). Otherwise
+ * every class loader falls back to its own static instance.
  */
 public class CKBService {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CKBService.class);
-  private HashMap<String, String> ckbs;
+  private static final String JNDI_NAME = "bean/CKBService";
+  private static CKBService local;
+
+  private final Map<String, Shared> models = new HashMap<String, Shared>();
+  private final Map<CognitiveKnowledgeBase, Shared> handles = new IdentityHashMap<CognitiveKnowledgeBase, Shared>();
 
   public CKBService() {
-    this.ckbs = new HashMap<String, String>();
+  }
+
+  /**
+   * One resident model and the number of CKBs using it.
+   */
+  private static final class Shared {
+
+    final String key;
+    final FutureTask<CognitiveKnowledgeBase> load;
+    int references;
+
+    Shared(String key, Callable<CognitiveKnowledgeBase> loader) {
+      this.key = key;
+      this.load = new FutureTask<CognitiveKnowledgeBase>(loader);
+    }
   }
 
   public static CKBService getCKBService() {
     Context sbCtx = null;
-    Context initCtx = null;
     try {
-      initCtx = new InitialContext();
+      Context initCtx = new InitialContext();
+      try {
+        sbCtx = (Context) initCtx.lookup("searchbox");
+      } catch (NamingException ex) {
+        sbCtx = initCtx.createSubcontext("searchbox");
+      }
     } catch (NamingException ex) {
+      LOGGER.debug("No JNDI context, using the CKBService of this class loader: " + ex);
+      return getLocalService();
     }
 
+    Object bound;
     try {
-      sbCtx = (Context) initCtx.lookup("searchbox");
+      bound = sbCtx.lookup(JNDI_NAME);
     } catch (NamingException ex) {
-      try {
-        sbCtx = initCtx.createSubcontext("searchbox");
-      } catch (NamingException ex1) {
-        LOGGER.error(ex1.toString());
+      synchronized (CKBService.class) {
+        try {
+          bound = sbCtx.lookup(JNDI_NAME);
+        } catch (NamingException ex1) {
+          LOGGER.info("Creating new CKBService in JNDI");
+          bound = getLocalService();
+          try {
+            sbCtx.bind(JNDI_NAME, bound);
+          } catch (NamingException ex2) {
+            LOGGER.error(ex2.toString());
+          }
+        }
       }
     }
+    if (!(bound instanceof CKBService)) {
+      LOGGER.warn("CKBService in JNDI comes from another class loader, put the searchbox jar in a shared lib "
+        + "to share CKBs across cores; using the CKBService of this class loader");
+      return getLocalService();
+    }
+    return (CKBService) bound;
+  }
+
+  private static synchronized CKBService getLocalService() {
+    if (local == null) {
+      local = new CKBService();
+    }
+    return local;
+  }
 
-    CKBService ckbsrv;
+  /**
+   * Returns a CKB over the shared model of a binary CKB file, loading it if
+   * no other CKB uses it yet.
+   */
+  public CognitiveKnowledgeBase acquireBinary(final String name, final String baseDirectory, final String binaryFile,
+                                              final float certainyValue, final float maximumDistance,
+                                              final CKBLoadOptions options) {
+    final File file = new File(baseDirectory + binaryFile);
+    String key = canonicalPath(file) + "@" + binaryChecksum(file) + storageKey(options);
+    return acquire(key, name, certainyValue, maximumDistance, new Callable<CognitiveKnowledgeBase>() {
+      public CognitiveKnowledgeBase call() {
+        return CognitiveKnowledgeBase.loadBinaryCKB(name, baseDirectory, binaryFile, certainyValue,
+          maximumDistance, options);
+      }
+    });
+  }
+
+  /**
+   * Returns a CKB over the shared model of text CKB files, loading it if no
+   * other CKB uses it yet.
+   */
+  public CognitiveKnowledgeBase acquireText(final String name, final String baseDirectory, final String modelFile,
+                                            final String idfFile, final String dictionaryFile,
+                                            final float certainyValue, final float maximumDistance,
+                                            final CKBLoadOptions options) {
+    String key = fileKey(new File(baseDirectory + modelFile)) + "|" + fileKey(new File(baseDirectory + idfFile))
+      + "|" + fileKey(new File(baseDirectory + dictionaryFile)) + storageKey(options);
+    return acquire(key, name, certainyValue, maximumDistance, new Callable<CognitiveKnowledgeBase>() {
+      public CognitiveKnowledgeBase call() {
+        return CognitiveKnowledgeBase.loadTextCKB(name, baseDirectory, modelFile, idfFile, dictionaryFile,
+          certainyValue, maximumDistance, options);
+      }
+    });
+  }
+
+  private CognitiveKnowledgeBase acquire(String key, String name, float certainyValue, float maximumDistance,
+                                         Callable<CognitiveKnowledgeBase> loader) {
+    Shared shared;
+    boolean owner = false;
+    synchronized (this) {
+      shared = models.get(key);
+      if (shared == null) {
+        shared = new Shared(key, loader);
+        models.put(key, shared);
+        owner = true;
+      }
+      shared.references++;
+    }
+    if (owner) {
+      LOGGER.info("Loading shared CKB model " + key);
+      shared.load.run();
+    } else {
+      LOGGER.info("Sharing resident CKB model " + key);
+    }
+    CognitiveKnowledgeBase model;
     try {
-      ckbsrv = (CKBService) sbCtx.lookup("bean/CKBService");
-    } catch (NamingException ex) {
-      LOGGER.info("Creating new CKBService in JNDI");
-      ckbsrv = new CKBService();
-      try {
-        sbCtx.bind("bean/CKBService", ckbsrv);
-      } catch (NamingException ex1) {
-        LOGGER.error(ex1.toString());
+      model = shared.load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      release(shared);
+      throw new RuntimeException("Interrupted while loading CKB " + key, e);
+    } catch (ExecutionException e) {
+      release(shared);
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
       }
+      throw new RuntimeException("CKB can not be loaded: " + key, e.getCause());
+    }
+    CognitiveKnowledgeBase ckb = model.withParameters(name, certainyValue, maximumDistance);
+    synchronized (this) {
+      handles.put(ckb, shared);
+    }
+    return ckb;
+  }
+
+  /**
+   * Gives back a CKB returned by this service. The shared model leaves the
+   * registry when no CKB uses it anymore.
+   */
+  public synchronized void release(CognitiveKnowledgeBase ckb) {
+    Shared shared = handles.remove(ckb);
+    if (shared != null) {
+      release(shared);
+    }
+  }
+
+  private synchronized void release(Shared shared) {
+    if (--shared.references == 0 && models.get(shared.key) == shared) {
+      models.remove(shared.key);
+      LOGGER.info("Released shared CKB model " + shared.key);
     }
+  }
+
+  /**
+   * @return the number of CKBs using each resident model, by model key
+   */
+  public synchronized Map<String, Integer> getReferences() {
+    Map<String, Integer> references = new LinkedHashMap<String, Integer>();
+    for (Shared shared : models.values()) {
+      references.put(shared.key, shared.references);
+    }
+    return references;
+  }
 
-    return ckbsrv;
+  private static String storageKey(CKBLoadOptions options) {
+    return "#" + options.getType() + "/" + options.getQuantization() + "/" + options.getPruneThreshold() + "/"
+      + options.getMaxDimensions();
   }
 
-  public String getCKB(String name) {
-    if (!ckbs.containsKey(name)) {
-      LOGGER.info("Loading CKB: " + name);
+  private static String canonicalPath(File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException e) {
+      return file.getAbsolutePath();
+    }
+  }
+
+  private static String fileKey(File file) {
+    return canonicalPath(file) + "@" + file.length() + ":" + file.lastModified();
+  }
+
+  /**
+   * The checksum of a binary CKB, read from its header, identifies its
+   * content; files written without one fall back to size and modification
+   * time.
+   */
+  private static String binaryChecksum(File file) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
       try {
-        Thread.sleep(5000);
-      } catch (InterruptedException ex) {
-        LOGGER.error(ex.toString());
+        CKBFormat.Header header = CKBFormat.readHeader(raf.getChannel());
+        if ((header.flags & CKBFormat.FLAG_CHECKSUM) != 0) {
+          return Long.toHexString(header.checksum);
+        }
+      } finally {
+        raf.close();
       }
-      this.ckbs.put(name, System.currentTimeMillis() + "");
+    } catch (IOException e) {
+      // the load reports the problem
     }
-    return ckbs.get(name);
+    return file.length() + ":" + file.lastModified();
   }
 }
@@ -0,0 +1,77 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+/**
+ * Storage backend of a {@link CognitiveKnowledgeBase}: the term rows of the
+ * model and the idf of every term, indexed by the term ids of a
+ * {@link CKBDictionary}.
+ */
+abstract class CKBStore {
+
+  private float[] termNorms;
+
+  /**
+   * Adds <code>weight</code> times the row of <code>termId</code> to
+   * <code>target</code>.
+   */
+  abstract void project(int termId, float weight, float[] target);
+
+  /**
+   * @return the idf of <code>termId</code>, or NaN if the term has none
+   */
+  abstract float getIdf(int termId);
+
+  /**
+   * @return the idf of every term indexed by term id, NaN for the terms
+   *         without one; shared with the store, not to be modified
+   */
+  abstract float[] getIdfTable();
+
+  /**
+   * @return the euclidean norm of the row of every term, indexed by term id,
+   *         computed once per store; shared, not to be modified
+   */
+  synchronized float[] getTermNorms(int termCount, int dimension) {
+    if (termNorms == null) {
+      termNorms = computeTermNorms(this, termCount, dimension);
+    }
+    return termNorms;
+  }
+
+  /**
+   * Projects every row into a scratch vector, so that repeated columns of a
+   * row add up exactly as they do in a projection.
+   */
+  static float[] computeTermNorms(CKBStore store, int termCount, int dimension) {
+    final float[] norms = new float[termCount];
+    final float[] row = new float[dimension];
+    for (int t = 0; t < termCount; t++) {
+      store.project(t, 1f, row);
+      double norm = 0;
+      for (int i = 0; i < dimension; i++) {
+        norm += row[i] * row[i];
+        row[i] = 0;
+      }
+      norms[t] = (float) Math.sqrt(norm);
+    }
+    return norms;
+  }
+
+  abstract long getNonZeroCount();
+
+  /**
+   * Approximate number of bytes held by this store, on or off the heap.
+   */
+  abstract long sizeInBytes();
+
+  /**
+   * @return the part of {@link #sizeInBytes()} mapped from a file rather than
+   *         held on the heap
+   */
+  long mappedBytes() {
+    return 0;
+  }
+}
@@ -7,22 +7,17 @@ package com.searchbox.sense;
 import com.searchbox.math.DoubleFullVector;
 import com.searchbox.math.RealTermFreqVector;
 import com.searchbox.utils.SystemUtils;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.zip.CRC32;
 
 /**
  *
@@ -31,198 +26,194 @@ import java.util.Map.Entry;
 public class CognitiveKnowledgeBase {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CognitiveKnowledgeBase.class);
+  /**
+   * Fill ratio from which AUTO picks the dense layout. A sparse entry takes a
+   * column and a value, so at half filled rows the dense matrix is no larger
+   * and saves the column indirection on every projection.
+   */
+  static final double DENSE_FILL_RATIO = 0.5;
   private final float certainyValue;
   private final float maximumDistance;
   private final String name;
   private final int dimentionality;
-  private final Map<String, int[]> col;
-  private final Map<String, float[]> val;
-  private final Map<String, Float> idf;
-
-  private CognitiveKnowledgeBase(final String name, final Map<String, int[]> col,
-                                 final Map<String, float[]> val, final Map<String, Float> idf, final int dimentionality,
-                                 final float certainyValue, final float maximumDistance) {
+  private final CKBDictionary dictionary;
+  private final CKBStore store;
+  private final float[] idf;
+  private final float[] termNorms;
+  private final long fingerprint;
+  private float retainedMass = 1f;
+
+  private CognitiveKnowledgeBase(final String name, final CKBDictionary dictionary, final CKBStore store,
+                                 final int dimentionality, final float certainyValue, final float maximumDistance) {
     this.name = name;
-    this.col = col;
-    this.val = val;
+    this.dictionary = dictionary;
+    this.store = store;
+    this.idf = store.getIdfTable();
+    this.termNorms = store.getTermNorms(dictionary.size(), dimentionality);
+    this.fingerprint = fingerprint(dimentionality, idf, termNorms);
     this.dimentionality = dimentionality;
     this.certainyValue = certainyValue;
     this.maximumDistance = maximumDistance;
-    this.idf = idf;
   }
 
   public static CognitiveKnowledgeBase loadSparseCKB(String name, String baseDirectory,
                                                      String modelFile, String idfFile, String dictionaryFile,
                                                      float certainyValue, float maximumDistance) {
-    CognitiveKnowledgeBase ckb = null;
-    BufferedReader in = null;
-    try {
-
-      LOGGER.info("Loadign CKB dictionary data from: " + baseDirectory + dictionaryFile);
-      ArrayList<String> terms = CognitiveKnowledgeBase.loadDictionary(new File(baseDirectory + dictionaryFile));
-      LOGGER.info("Dictionary loaded with " + terms.size() + " terms.");
-      Map<String, List<Integer>> col = new HashMap<String, List<Integer>>();
-      Map<String, List<Float>> val = new HashMap<String, List<Float>>();
-
-      //Init the col and val data struct to save time later...
-      for (String term : terms) {
-        col.put(term, new ArrayList<Integer>());
-        val.put(term, new ArrayList<Float>());
-      }
-
-      LOGGER.info("Loadign CKB data from: " + baseDirectory + modelFile);
-      in = new BufferedReader(new InputStreamReader(new FileInputStream(baseDirectory + modelFile)));
-      final String metaLine = in.readLine();
-      if (metaLine == null) {
-        throw new RuntimeException("Can't read first line of Sparse CKB file");
-      }
-
-      final String[] parameters = metaLine.split("\\s");
-      int nrow = Integer.valueOf(parameters[0]); //shoudl be equal to terms.size();
-      int ncol = Integer.valueOf(parameters[1]); //this is dim
-      LOGGER.info("Readign CKB data with rows: " + nrow + ", cols:" + ncol);
-
-      String line;
-      int ival = 0;
-      while ((line = in.readLine()) != null) {
-        final String[] dline = line.split("\\s");
-        if (dline.length != 3) {
-          LOGGER.warn("Line should contain 3 values!!!");
-          continue;
-        }
-
-        final String term = terms.get(Integer.valueOf(dline[0]));
-        col.get(term).add(Integer.valueOf(dline[1]));
-        val.get(term).add(Float.valueOf(dline[2]));
-        ival++;
-      }
-      LOGGER.info("Loaded " + ival + " values in CKB");
-
-      final Map<String, int[]> coll = new HashMap<String, int[]>();
-      final Map<String, float[]> vall = new HashMap<String, float[]>();
-
-      LOGGER.info("Transforming col array");
-      for (Entry<String, List<Integer>> _col : col.entrySet()) {
-        int[] tcol = new int[_col.getValue().size()];
-        int count = 0;
-        for (Integer i : _col.getValue()) {
-          tcol[count++] = i.intValue();
-        }
-        coll.put(_col.getKey(), tcol);
-      }
-
-      LOGGER.info("Transforming val array");
-      for (Entry<String, List<Float>> _val : val.entrySet()) {
-        float[] tval = new float[_val.getValue().size()];
-        int count = 0;
-        for (Float i : _val.getValue()) {
-          tval[count++] = i.floatValue();
-        }
-        vall.put(_val.getKey(), tval);
-      }
-
-      LOGGER.info("Transformation done. Clearing temp objects.");
-      col.clear();
-      val.clear();
-      col = null;
-      val = null;
-
-      LOGGER.info("Loadign idf data from: " + baseDirectory + idfFile);
-
-      Map<String, Float> idf = CognitiveKnowledgeBase.loadIdf(new File(baseDirectory + idfFile));
+    return loadTextCKB(name, baseDirectory, modelFile, idfFile, dictionaryFile, certainyValue, maximumDistance,
+      new CKBLoadOptions());
+  }
 
-      LOGGER.info("Done. idf has size: " + idf.size());
+  /**
+   * Loads a CKB from its text files. SPARSE keeps the rows in compressed
+   * sparse row form, FULL in a dense matrix and AUTO picks one of the two
+   * from the fill ratio of the model. A quantized CKB is always stored
+   * sparse, with 8 or 16 bit values. The model file is parsed by
+   * {@link CKBLoadOptions#getParseThreads()} threads, then pruned as set by
+   * {@link CKBLoadOptions#getPruneThreshold()} and
+   * {@link CKBLoadOptions#getMaxDimensions()}.
+   */
+  public static CognitiveKnowledgeBase loadTextCKB(String name, String baseDirectory,
+                                                   String modelFile, String idfFile, String dictionaryFile,
+                                                   float certainyValue, float maximumDistance,
+                                                   CKBLoadOptions options) {
+    final long start = System.currentTimeMillis();
+    CKBData data = TextCKBReader.read(new File(baseDirectory + dictionaryFile),
+      new File(baseDirectory + modelFile), new File(baseDirectory + idfFile), options.getParseThreads());
+    FSTDictionary dictionary = new FSTDictionary(data.terms);
+    float retained = 1f;
+    if (options.isPruning()) {
+      CKBData pruned = data.prune(options.getPruneThreshold(), options.getMaxDimensions());
+      retained = retainedMass(data, pruned, options);
+      data = pruned;
+    }
+    CKBStore store = createStore(data, options);
+    LOGGER.info("Loaded " + store.getClass().getSimpleName() + " CKB with " + dictionary.size() + " terms and " + store.getNonZeroCount()
+      + " values in " + (System.currentTimeMillis() - start) + "ms, dictionary FST of "
+      + dictionary.sizeInBytes() + " bytes and rows of " + store.sizeInBytes() + " bytes");
+    LOGGER.info(SystemUtils.getMemoryUsage());
+    CognitiveKnowledgeBase ckb = new CognitiveKnowledgeBase(name, dictionary, store, data.dimension, certainyValue,
+      maximumDistance);
+    ckb.retainedMass = retained;
+    return ckb;
+  }
 
-      LOGGER.info(SystemUtils.getMemoryUsage());
+  private static CKBStore createStore(CKBData data, CKBLoadOptions options) {
+    if (options.getQuantization() != Quantization.NONE) {
+      return QuantizedCKBStore.create(data, options.getQuantization());
+    } else if (resolveType(options.getType(), data.terms.length, data.dimension, data.getNonZeroCount()) == Type.FULL) {
+      return new DenseCKBStore(data);
+    }
+    return new SparseCKBStore(data);
+  }
 
-      ckb = new CognitiveKnowledgeBase(name, coll, vall, idf, ncol, certainyValue, maximumDistance);
+  /**
+   * Logs what pruning kept of the model.
+   *
+   * @return the fraction of the squared mass of <code>data</code> kept in
+   *         <code>pruned</code>
+   */
+  private static float retainedMass(CKBData data, CKBData pruned, CKBLoadOptions options) {
+    final double mass = data.getSquaredMass();
+    final float retained = mass == 0 ? 1f : (float) (pruned.getSquaredMass() / mass);
+    LOGGER.info("Pruned CKB to values of at least " + options.getPruneThreshold() + " in " + pruned.dimension
+      + " of " + data.dimension + " dimensions: " + pruned.getNonZeroCount() + " of " + data.getNonZeroCount()
+      + " values kept, retaining " + (100 * retained) + "% of the squared mass");
+    return retained;
+  }
 
+  public static CognitiveKnowledgeBase loadBinaryCKB(String name, String baseDirectory, String binaryFile,
+                                                     float certainyValue, float maximumDistance) {
+    return loadBinaryCKB(name, baseDirectory, binaryFile, certainyValue, maximumDistance, false);
+  }
 
-    } catch (IOException e) {
-      throw new RuntimeException("DLines can not be read.", e);
-    } finally {
-      if (in != null) {
-        try {
-          in.close();
-        } catch (IOException e) {
-          LOGGER.error("File can not be closed.", e);
-        }
-      }
-    }
-    return ckb;
+  public static CognitiveKnowledgeBase loadBinaryCKB(String name, String baseDirectory, String binaryFile,
+                                                     float certainyValue, float maximumDistance,
+                                                     boolean verifyChecksum) {
+    CKBLoadOptions options = new CKBLoadOptions();
+    options.setVerifyChecksum(verifyChecksum);
+    return loadBinaryCKB(name, baseDirectory, binaryFile, certainyValue, maximumDistance, options);
   }
 
-  private static ArrayList<String> loadDictionary(File dictionary) {
-    BufferedReader fin = null;
-    ArrayList<String> terms = new ArrayList<String>();
+  /**
+   * Opens a CKB stored in the binary format written by {@link CKBConverter}.
+   * With the SPARSE type the file is memory mapped and queried in place, so
+   * the model lives outside of the Java heap and nothing is parsed at load
+   * time. FULL copies the rows into a dense heap matrix, AUTO does so when
+   * the model is filled enough and a quantization copies the rows into
+   * quantized heap arrays. Pruning also copies the rows onto the heap, in
+   * the form given by the type and quantization. Verifying the checksum
+   * reads the whole file once.
+   */
+  public static CognitiveKnowledgeBase loadBinaryCKB(String name, String baseDirectory, String binaryFile,
+                                                     float certainyValue, float maximumDistance,
+                                                     CKBLoadOptions options) {
+    final File file = new File(baseDirectory + binaryFile);
+    LOGGER.info("Mapping binary CKB from: " + file.getPath());
+    final long start = System.currentTimeMillis();
+    MappedCKBStore store;
     try {
-      fin = new BufferedReader(new InputStreamReader(new FileInputStream(dictionary), "UTF-8"));
-      String line = "";
-      int count = 0;
-      while ((line = fin.readLine()) != null) {
-        String data[] = line.split("\t");
-        count++;
-
-        //tdic files from export come of the following format index stem terms.
-        if (data.length > 2) {
-          terms.add(data[1]);
-        } //tdic files form MATLAB are 1 based...
-        else if (data.length == 2) {
-          terms.add(data[1]);//Integer.parseInt(data[0]) - 1);
-        } else if (data.length == 1) {
-          LOGGER.debug(data[0] + " with empty term");
-          terms.add(data[0]);
-        }
-      }
-      LOGGER.debug("READ " + count + " lines and added " + terms.size() + " stems.");
-    } catch (FileNotFoundException e) {
-      throw new RuntimeException("Dictionary file could not be found in: " + dictionary.getAbsolutePath(), e);
-    } catch (NumberFormatException e) {
-      throw new RuntimeException("Dictionary can not be created.", e);
+      store = MappedCKBStore.open(file, options.isVerifyChecksum());
     } catch (IOException e) {
-      throw new RuntimeException("Dictionary can not be created.", e);
-    } finally {
-      if (fin != null) {
-        try {
-          fin.close();
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
+      throw new RuntimeException("Binary CKB can not be opened: " + file.getAbsolutePath(), e);
     }
-    return terms;
+    LOGGER.info("Mapped CKB with " + store.getDictionary().size() + " terms, " + store.getNonZeroCount()
+      + " values and dimension " + store.getDimension() + " in " + (System.currentTimeMillis() - start) + "ms");
+    final int termCount = store.getDictionary().size();
+    if (options.isPruning()) {
+      CKBData data = CKBData.copyOf(store, store.getDictionary().getTerms().toArray(new String[termCount]),
+        store.getDimension());
+      CKBData pruned = data.prune(options.getPruneThreshold(), options.getMaxDimensions());
+      final float retained = retainedMass(data, pruned, options);
+      CKBStore heap = createStore(pruned, options);
+      LOGGER.info("Copied pruned CKB rows into a " + heap.getClass().getSimpleName() + " of " + heap.sizeInBytes()
+        + " bytes");
+      CognitiveKnowledgeBase ckb = new CognitiveKnowledgeBase(name, store.getDictionary(), heap, pruned.dimension,
+        certainyValue, maximumDistance);
+      ckb.retainedMass = retained;
+      return ckb;
+    }
+    final Quantization quantization = options.getQuantization();
+    if (quantization != Quantization.NONE) {
+      QuantizedCKBStore quantized = QuantizedCKBStore.copyOf(store, termCount, store.getDimension(), quantization);
+      LOGGER.info("Quantized CKB rows to " + quantization + " in " + quantized.sizeInBytes() + " bytes");
+      return new CognitiveKnowledgeBase(name, store.getDictionary(), quantized, store.getDimension(),
+        certainyValue, maximumDistance);
+    }
+    if (resolveType(options.getType(), termCount, store.getDimension(), store.getNonZeroCount()) == Type.FULL) {
+      DenseCKBStore dense = DenseCKBStore.copyOf(store, termCount, store.getDimension());
+      LOGGER.info("Copied CKB rows into a dense matrix of " + dense.sizeInBytes() + " bytes");
+      return new CognitiveKnowledgeBase(name, store.getDictionary(), dense, store.getDimension(),
+        certainyValue, maximumDistance);
+    }
+    return new CognitiveKnowledgeBase(name, store.getDictionary(), store, store.getDimension(),
+      certainyValue, maximumDistance);
   }
 
-  private static Map<String, Float> loadIdf(File idfFile) {
-    Map<String, Float> idf = new HashMap<String, Float>();
-    try {
-
-      LOGGER.debug("Loading idf from file: " + idfFile.getName());
-      BufferedReader fin = null;
-      try {
-        fin = new BufferedReader(new FileReader(idfFile));
-        String idfline;
-        while ((idfline = fin.readLine()) != null) {
-          final String[] parts = idfline.trim().split("\\s");
-          final String term = parts[0];
-          final float value = Float.parseFloat(parts[1]);
-          idf.put(term, value);
-        }
-      } catch (IOException e) {
-        LOGGER.error("IDF File can not be read. Returning default IDF vector");
-      } finally {
-        if (fin != null) {
-          try {
-            fin.close();
-          } catch (IOException e) {
-            LOGGER.error("IDF File can not be closed.");
-          }
-        }
-      }
-    } finally {
-      LOGGER.info("Loaded " + idf.size() + " items.");
+  /**
+   * Resolves AUTO to FULL or SPARSE from the fill ratio of the model. A dense
+   * matrix too large for a single array is always stored sparse.
+   */
+  static Type resolveType(Type type, int termCount, int dimension, long nnz) {
+    if (type != Type.AUTO) {
+      return type;
+    }
+    if (termCount == 0 || dimension == 0 || !DenseCKBStore.fits(termCount, dimension)) {
+      return Type.SPARSE;
     }
-    return idf;
+    double fillRatio = (double) nnz / ((long) termCount * dimension);
+    Type resolved = fillRatio >= DENSE_FILL_RATIO ? Type.FULL : Type.SPARSE;
+    LOGGER.info("CKB fill ratio is " + fillRatio + ", using " + resolved + " layout");
+    return resolved;
+  }
+
+  /**
+   * A CKB sharing the model of this one under another name and parameters.
+   */
+  CognitiveKnowledgeBase withParameters(String name, float certainyValue, float maximumDistance) {
+    CognitiveKnowledgeBase ckb = new CognitiveKnowledgeBase(name, dictionary, store, dimentionality, certainyValue,
+      maximumDistance);
+    ckb.retainedMass = retainedMass;
+    return ckb;
   }
 
   public float getCertainyValue() {
@@ -237,16 +228,94 @@ public class CognitiveKnowledgeBase {
     return name;
   }
 
+  /**
+   * @return the number of non zero values of the model
+   */
+  public long getNonZeroCount() {
+    return store.getNonZeroCount();
+  }
+
+  /**
+   * @return the fraction of the squared mass of the model kept by pruning at
+   *         load, 1 when it was not pruned
+   */
+  public float getRetainedMass() {
+    return retainedMass;
+  }
+
   public int getDimentionality() {
     return dimentionality;
   }
 
+  /**
+   * @return a checksum of the dimension, idf and term norms of the model,
+   *         telling whether vectors projected earlier, e.g. at index time,
+   *         were projected by the same model
+   */
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  private static long fingerprint(int dimension, float[] idf, float[] termNorms) {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[4096];
+    int pos = putInt(buffer, 0, dimension);
+    pos = putInt(buffer, pos, idf.length);
+    for (float[] table : new float[][]{idf, termNorms}) {
+      for (float value : table) {
+        if (pos == buffer.length) {
+          crc.update(buffer, 0, pos);
+          pos = 0;
+        }
+        pos = putInt(buffer, pos, Float.floatToIntBits(value));
+      }
+    }
+    crc.update(buffer, 0, pos);
+    return crc.getValue();
+  }
+
+  private static int putInt(byte[] buffer, int pos, int value) {
+    buffer[pos] = (byte) value;
+    buffer[pos + 1] = (byte) (value >>> 8);
+    buffer[pos + 2] = (byte) (value >>> 16);
+    buffer[pos + 3] = (byte) (value >>> 24);
+    return pos + 4;
+  }
+
   public int getDictionarySize() {
     return this.getRowDimension();
   }
 
   public Collection<String> getTerms() {
-    return this.col.keySet();
+    return this.dictionary.getTerms();
+  }
+
+  /**
+   * @return the id of <code>term</code> in this CKB, or -1 if it is unknown
+   */
+  public int getTermId(BytesRef term) {
+    return this.dictionary.getTermId(term);
+  }
+
+  public int getTermId(String term) {
+    return this.dictionary.getTermId(term);
+  }
+
+  /**
+   * Approximate number of bytes held by the model, on or off the heap: a
+   * a binary CKB counts the mapped sections of its file, see
+   * {@link #getMappedBytes()}.
+   */
+  public long getSizeInBytes() {
+    return this.dictionary.sizeInBytes() + this.store.sizeInBytes() + 4L * termNorms.length;
+  }
+
+  /**
+   * @return the part of {@link #getSizeInBytes()} mapped from the CKB file,
+   *         outside the heap
+   */
+  public long getMappedBytes() {
+    return this.dictionary.mappedBytes() + this.store.mappedBytes();
   }
 
   public DoubleFullVector getFullCkbVector(final RealTermFreqVector tfc) {
@@ -255,33 +324,104 @@ public class CognitiveKnowledgeBase {
     String terms[] = tfc.getTerms();
     float freqs[] = tfc.getFreqs();
     for (int zz = 0; zz < maxSize; zz++) {
-      String term = terms[zz];
-      final float[] termValues = val.get(term);
-      if (termValues == null) {
-        continue;
+      project(dictionary.getTermId(terms[zz]), freqs[zz], vector);
+    }
+    return new DoubleFullVector(vector);
+  }
+
+  /**
+   * Projects a term vector straight from the index: terms are looked up by
+   * their bytes and weighted by their frequency, without creating any String.
+   */
+  public DoubleFullVector getFullCkbVector(final Terms terms) throws IOException {
+    float[] vector = new float[this.getColumnDimension()];
+    if (terms != null) {
+      TermsEnum termsEnum = terms.iterator(null);
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        project(dictionary.getTermId(term), (float) termsEnum.totalTermFreq(), vector);
       }
-      final int[] termCols = col.get(term);
-      final float termFrequency = freqs[zz];
-      for (int i = 0; i < termCols.length; i++) {
-        vector[termCols[i]] += termFrequency * termValues[i];
+    }
+    return new DoubleFullVector(vector);
+  }
+
+  /**
+   * Writes the ids and frequencies of the terms of a term vector known to
+   * this CKB to <code>termIds</code> and <code>freqs</code>, which must hold
+   * <code>terms.size()</code> entries. Ids come out increasing since the index
+   * and the CKB dictionary both order terms by their bytes.
+   *
+   * @return the number of terms written
+   */
+  public int getTermIds(final Terms terms, int[] termIds, float[] freqs) throws IOException {
+    return terms == null ? 0 : getTermIds(terms.iterator(null), termIds, freqs);
+  }
+
+  /**
+   * Same as {@link #getTermIds(Terms, int[], float[])} from a fresh enum of
+   * the term vector, which callers may reuse across documents.
+   */
+  public int getTermIds(final TermsEnum termsEnum, int[] termIds, float[] freqs) throws IOException {
+    int size = 0;
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      final int termId = dictionary.getTermId(term);
+      if (termId >= 0) {
+        termIds[size] = termId;
+        freqs[size] = (float) termsEnum.totalTermFreq();
+        size++;
       }
     }
+    return size;
+  }
+
+  /**
+   * Projects the first <code>size</code> terms given by id, see
+   * {@link #getTermIds}.
+   */
+  public DoubleFullVector getFullCkbVector(final int[] termIds, final float[] freqs, final int size) {
+    float[] vector = new float[this.getColumnDimension()];
+    projectInto(termIds, freqs, size, vector);
     return new DoubleFullVector(vector);
   }
 
+  /**
+   * Writes the projection of the first <code>size</code> terms given by id
+   * to <code>target</code>, a caller buffer of the CKB dimension which is
+   * cleared first.
+   */
+  public void projectInto(final int[] termIds, final float[] freqs, final int size, final float[] target) {
+    Arrays.fill(target, 0, this.getColumnDimension(), 0f);
+    for (int zz = 0; zz < size; zz++) {
+      store.project(termIds[zz], freqs[zz], target);
+    }
+  }
+
+  /**
+   * Norm of the projection of <code>term</code> with frequency
+   * <code>termFrequencies</code>, i.e. the norm of
+   * {@link #getFullCkbVector(String, float)}, read from a table computed
+   * at load. Like {@link DoubleFullVector#getNorm} it is negative infinity
+   * for a null projection, e.g. of an unknown term.
+   */
+  public float getTermNorm(String term, float termFrequencies) {
+    final int termId = dictionary.getTermId(term);
+    final float norm = termId < 0 ? 0 : Math.abs(termFrequencies) * termNorms[termId];
+    return norm == 0 ? Float.NEGATIVE_INFINITY : norm;
+  }
+
   public DoubleFullVector getFullCkbVector(String term, float termFrequencies) {
     float[] vector = new float[this.getColumnDimension()];
-    final float[] termValues = val.get(term);
-    if (termValues == null) {
-      return new DoubleFullVector(vector);
-    }
-    final int[] termCols = col.get(term);
-    for (int i = 0; i < termCols.length; i++) {
-      vector[termCols[i]] += termFrequencies * termValues[i];
-    }
+    project(dictionary.getTermId(term), termFrequencies, vector);
     return new DoubleFullVector(vector);
   }
 
+  private void project(int termId, float weight, float[] vector) {
+    if (termId >= 0) {
+      store.project(termId, weight, vector);
+    }
+  }
+
   public RealTermFreqVector getTfIdfVector(RealTermFreqVector tfc) {
     RealTermFreqVector out = new RealTermFreqVector(tfc.getSize());
     int maxSize = tfc.getSize();
@@ -289,27 +429,41 @@ public class CognitiveKnowledgeBase {
     float[] freqs = tfc.getFreqs();
     for (int zz = 0; zz < maxSize; zz++) {
       String key = terms[zz];
-      Float lval = idf.get(key);
-      if (lval != null) {
+      int termId = dictionary.getTermId(key);
+      float lval = termId < 0 ? Float.NaN : idf[termId];
+      if (!Float.isNaN(lval)) {
         out.set(key, freqs[zz] * lval, out.getNextpos());
       }
     }
     out.setSize(out.getNextpos());
     return out;
   }
+  /**
+   * Writes the tf-idf weight of the first <code>size</code> terms given by id
+   * to <code>weights</code>, 0 for the terms without idf.
+   *
+   * @return the norm of the tf-idf vector
+   */
+  public float getTfIdf(final int[] termIds, final float[] freqs, final int size, float[] weights) {
+    final float[] termIdf = idf;
+    float norm = 0;
+    for (int zz = 0; zz < size; zz++) {
+      final float lval = termIdf[termIds[zz]];
+      final float weight = Float.isNaN(lval) ? 0 : freqs[zz] * lval;
+      weights[zz] = weight;
+      norm += weight * weight;
+    }
+    return (float) Math.sqrt(norm);
+  }
+
 
   public float computeSimilarity(DoubleFullVector q, DoubleFullVector t) {
     return q.getDistance(t);
   }
 
-  private float getIdf(final String stem) {
-    final Float val = idf.get(stem);
-    return val == null ? 0.0f : val;
-  }
-
   // Explicit number of terms present in CKB
   private int getRowDimension() {
-    return col.keySet().size();
+    return dictionary.size();
   }
 
   private int getColumnDimension() {
@@ -319,6 +473,18 @@ public class CognitiveKnowledgeBase {
 
   public enum Type {
     SPARSE,
-    FULL
+    FULL,
+    AUTO
+  }
+
+  /**
+   * Precision of the stored CKB values. INT8 keeps one byte and FLOAT16 a
+   * half precision float per value, both scaled by the largest absolute
+   * value of their row.
+   */
+  public enum Quantization {
+    NONE,
+    INT8,
+    FLOAT16
   }
 }
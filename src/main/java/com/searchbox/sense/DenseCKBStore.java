@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import java.util.Arrays;
+
+/**
+ * Heap store keeping the model as a dense row-major matrix: the row of term
+ * <code>i</code> is <code>matrix[i * dimension .. (i + 1) * dimension)</code>.
+ * Projecting a term adds one contiguous row, without going through a column
+ * index, which is the faster layout for low dimensional, well filled models.
+ */
+final class DenseCKBStore extends CKBStore {
+
+  private final float[] matrix;
+  private final float[] idf;
+  private final int dimension;
+  private final long nnz;
+
+  private DenseCKBStore(float[] matrix, float[] idf, int dimension, long nnz) {
+    this.matrix = matrix;
+    this.idf = idf;
+    this.dimension = dimension;
+    this.nnz = nnz;
+  }
+
+  DenseCKBStore(CKBData data) {
+    this(new float[checkedSize(data.terms.length, data.dimension)], data.idf, data.dimension,
+      data.getNonZeroCount());
+    final int[] rowOffsets = data.rowOffsets;
+    for (int t = 0; t < data.terms.length; t++) {
+      final int base = t * dimension;
+      for (int i = rowOffsets[t]; i < rowOffsets[t + 1]; i++) {
+        matrix[base + data.columns[i]] = data.values[i];
+      }
+    }
+  }
+
+  /**
+   * Copies the rows and idf of another store, e.g. a memory mapped one, into
+   * a dense heap matrix.
+   */
+  static DenseCKBStore copyOf(CKBStore store, int termCount, int dimension) {
+    float[] matrix = new float[checkedSize(termCount, dimension)];
+    float[] idf = new float[termCount];
+    float[] row = new float[dimension];
+    for (int t = 0; t < termCount; t++) {
+      Arrays.fill(row, 0f);
+      store.project(t, 1f, row);
+      System.arraycopy(row, 0, matrix, t * dimension, dimension);
+      idf[t] = store.getIdf(t);
+    }
+    return new DenseCKBStore(matrix, idf, dimension, store.getNonZeroCount());
+  }
+
+  /**
+   * @return true if a dense matrix of <code>termCount</code> rows fits in a
+   * single Java array
+   */
+  static boolean fits(int termCount, int dimension) {
+    return (long) termCount * dimension <= Integer.MAX_VALUE - 8;
+  }
+
+  private static int checkedSize(int termCount, int dimension) {
+    if (!fits(termCount, dimension)) {
+      throw new RuntimeException("Dense CKB of " + termCount + " terms and dimension " + dimension
+        + " does not fit in a single array, use the SPARSE type");
+    }
+    return termCount * dimension;
+  }
+
+  @Override
+  void project(int termId, float weight, float[] target) {
+    final float[] m = matrix;
+    for (int i = 0, j = termId * dimension; i < dimension; i++, j++) {
+      target[i] += weight * m[j];
+    }
+  }
+
+  @Override
+  float getIdf(int termId) {
+    return idf[termId];
+  }
+
+  @Override
+  float[] getIdfTable() {
+    return idf;
+  }
+
+  @Override
+  long getNonZeroCount() {
+    return nnz;
+  }
+
+  @Override
+  long sizeInBytes() {
+    return 4L * matrix.length + 4L * idf.length;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.IOException;
+
+/**
+ * Heap dictionary backed by a Lucene FST mapping each term to its ordinal.
+ * Lookups walk the FST with per-thread arcs, so no object is created per
+ * lookup.
+ */
+final class FSTDictionary extends CKBDictionary {
+
+  private final FST<Long> fst;
+  private final int size;
+  private final ThreadLocal<Lookup> lookups = new ThreadLocal<Lookup>() {
+    @Override
+    protected Lookup initialValue() {
+      return new Lookup();
+    }
+  };
+
+  /**
+   * @param terms unique terms, sorted in unsigned UTF-8 byte order
+   */
+  FSTDictionary(String[] terms) {
+    PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton(true);
+    Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, outputs);
+    IntsRef scratch = new IntsRef();
+    try {
+      for (int i = 0; i < terms.length; i++) {
+        builder.add(Util.toIntsRef(new BytesRef(terms[i]), scratch), (long) i);
+      }
+      this.fst = builder.finish();
+    } catch (IOException e) {
+      throw new RuntimeException("Dictionary FST can not be built.", e);
+    }
+    this.size = terms.length;
+  }
+
+  private final class Lookup {
+
+    final FST.Arc<Long> arc = new FST.Arc<Long>();
+    final FST.BytesReader in = fst.getBytesReader(0);
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  @Override
+  int getTermId(BytesRef term) {
+    if (fst == null) {
+      return -1;
+    }
+    final Lookup lookup = lookups.get();
+    final FST.Arc<Long> arc = fst.getFirstArc(lookup.arc);
+    long output = 0;
+    try {
+      for (int i = term.offset, end = term.offset + term.length; i < end; i++) {
+        if (fst.findTargetArc(term.bytes[i] & 0xff, arc, arc, lookup.in) == null) {
+          return -1;
+        }
+        output += arc.output;
+      }
+      if (!arc.isFinal()) {
+        return -1;
+      }
+      return (int) (output + arc.nextFinalOutput);
+    } catch (IOException e) {
+      throw new RuntimeException("Dictionary FST can not be read.", e);
+    }
+  }
+
+  @Override
+  String getTerm(int termId) {
+    try {
+      IntsRef path = Util.getByOutput(fst, termId);
+      return Util.toBytesRef(path, new BytesRef(path.length)).utf8ToString();
+    } catch (IOException e) {
+      throw new RuntimeException("Dictionary FST can not be read.", e);
+    }
+  }
+
+  @Override
+  long sizeInBytes() {
+    return fst == null ? 0 : fst.sizeInBytes();
+  }
+}
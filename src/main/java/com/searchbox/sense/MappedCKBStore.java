@@ -0,0 +1,212 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Store reading a binary CKB (see {@link CKBFormat}) in place through
+ * memory mapped buffers. Nothing is parsed on open, the dictionary of the file
+ * finds terms by binary search over the sorted term bytes. Only absolute buffer
+ * reads are used so the store can be shared by concurrent searches.
+ */
+final class MappedCKBStore extends CKBStore {
+
+  private final File file;
+  private final CKBFormat.Header header;
+  private final IntBuffer termOffsets;
+  private final ByteBuffer termBytes;
+  private final LongBuffer rowOffsets;
+  private final IntBuffer columns;
+  private final FloatBuffer values;
+  private final float[] idf;
+  private final float[] termNorms;
+  private final CKBDictionary dictionary = new MappedDictionary();
+
+  private MappedCKBStore(File file, CKBFormat.Header header, FileChannel channel) throws IOException {
+    this.file = file;
+    this.header = header;
+    this.termOffsets = map(channel, CKBFormat.TERM_OFFSETS).asIntBuffer();
+    this.termBytes = map(channel, CKBFormat.TERM_BYTES);
+    this.rowOffsets = map(channel, CKBFormat.ROW_OFFSETS).asLongBuffer();
+    this.columns = map(channel, CKBFormat.COLUMNS).asIntBuffer();
+    this.values = map(channel, CKBFormat.VALUES).asFloatBuffer();
+    // idf is read for every term of every scored document, keep it on the heap
+    this.idf = new float[header.termCount];
+    map(channel, CKBFormat.IDF).asFloatBuffer().get(idf);
+    if (header.sectionLength[CKBFormat.TERM_NORMS] != 0) {
+      this.termNorms = new float[header.termCount];
+      map(channel, CKBFormat.TERM_NORMS).asFloatBuffer().get(termNorms);
+    } else {
+      this.termNorms = null;
+    }
+  }
+
+  static MappedCKBStore open(File file, boolean verifyChecksum) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      CKBFormat.Header header = CKBFormat.readHeader(channel);
+      if (verifyChecksum) {
+        CKBFormat.verify(channel, header);
+      }
+      // mappings stay valid after the channel is closed
+      return new MappedCKBStore(file, header, channel);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private ByteBuffer map(FileChannel channel, int section) throws IOException {
+    final long length = header.sectionLength[section];
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Section " + section + " of " + file + " is larger than 2GB and can not be mapped");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, header.sectionOffset[section], length)
+      .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  int getDimension() {
+    return header.dimension;
+  }
+
+  CKBDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * @return the CRC32 of the file content, 0 if it was written without one
+   */
+  long getChecksum() {
+    return (header.flags & CKBFormat.FLAG_CHECKSUM) == 0 ? 0 : header.checksum;
+  }
+
+  @Override
+  void project(int termId, float weight, float[] target) {
+    final int end = (int) rowOffsets.get(termId + 1);
+    for (int i = (int) rowOffsets.get(termId); i < end; i++) {
+      target[columns.get(i)] += weight * values.get(i);
+    }
+  }
+
+  @Override
+  float getIdf(int termId) {
+    return idf[termId];
+  }
+
+  @Override
+  float[] getIdfTable() {
+    return idf;
+  }
+
+  /**
+   * Uses the norms stored in the file when it has them.
+   */
+  @Override
+  float[] getTermNorms(int termCount, int dimension) {
+    return termNorms != null ? termNorms : super.getTermNorms(termCount, dimension);
+  }
+
+  @Override
+  long getNonZeroCount() {
+    return header.nnz;
+  }
+
+  /**
+   * The term sections of the file are counted by the dictionary, which may be
+   * kept when the rows are copied onto the heap.
+   */
+  @Override
+  long sizeInBytes() {
+    return mappedBytes() + 4L * idf.length;
+  }
+
+  @Override
+  long mappedBytes() {
+    return file.length() - termSectionsLength();
+  }
+
+  private long termSectionsLength() {
+    return header.sectionLength[CKBFormat.TERM_OFFSETS] + header.sectionLength[CKBFormat.TERM_BYTES];
+  }
+
+  /**
+   * Binary search over the sorted term bytes of the file.
+   */
+  private final class MappedDictionary extends CKBDictionary {
+
+    @Override
+    int size() {
+      return header.termCount;
+    }
+
+    @Override
+    int getTermId(BytesRef term) {
+      int low = 0;
+      int high = header.termCount - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final int cmp = compareTerm(mid, term);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    private int compareTerm(int termId, BytesRef term) {
+      int pos = termOffsets.get(termId);
+      final int end = termOffsets.get(termId + 1);
+      final int len = Math.min(end - pos, term.length);
+      final byte[] bytes = term.bytes;
+      for (int i = term.offset, limit = term.offset + len; i < limit; i++, pos++) {
+        final int diff = (termBytes.get(pos) & 0xff) - (bytes[i] & 0xff);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return (end - termOffsets.get(termId)) - term.length;
+    }
+
+    @Override
+    String getTerm(int termId) {
+      final int start = termOffsets.get(termId);
+      final int end = termOffsets.get(termId + 1);
+      byte[] bytes = new byte[end - start];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = termBytes.get(start + i);
+      }
+      return new BytesRef(bytes).utf8ToString();
+    }
+
+    @Override
+    long sizeInBytes() {
+      return termSectionsLength();
+    }
+
+    @Override
+    long mappedBytes() {
+      return termSectionsLength();
+    }
+  }
+}
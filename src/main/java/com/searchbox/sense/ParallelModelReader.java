@@ -0,0 +1,420 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the sparse <code>row col value</code> model file with several
+ * threads. The file is split in byte ranges on line boundaries, every range is
+ * memory mapped and parsed by its own worker with a hand written number
+ * parser, and the workers then scatter their entries straight into the CSR
+ * arrays. Within a row, entries keep their file order, so the result is the
+ * same as a sequential read.
+ */
+final class ParallelModelReader {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParallelModelReader.class);
+  private static final long MAX_CHUNK = 1L << 30;
+  private static final double[] POW10 = new double[23];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+  }
+
+  private ParallelModelReader() {
+  }
+
+  static CKBData read(File modelFile, final String[] terms, final int[] rowToTermId, float[] idf, int threads) {
+    RandomAccessFile raf = null;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      raf = new RandomAccessFile(modelFile, "r");
+      final FileChannel channel = raf.getChannel();
+      final long size = channel.size();
+
+      long bodyStart = nextLine(channel, 0, size);
+      if (bodyStart == 0) {
+        throw new RuntimeException("Can't read first line of Sparse CKB file");
+      }
+      ByteBuffer head = ByteBuffer.allocate((int) bodyStart);
+      channel.read(head, 0);
+      final String[] parameters = new String(head.array(), "US-ASCII").trim().split("\\s");
+      int nrow = Integer.valueOf(parameters[0]); //shoudl be equal to terms.size();
+      final int dimension = Integer.valueOf(parameters[1]);
+      LOGGER.info("Readign CKB data with rows: " + nrow + ", cols:" + dimension);
+
+      // chunk boundaries, each right after a line break
+      final int chunks = (int) Math.max(threads, (size - bodyStart) / MAX_CHUNK + 1);
+      final long[] starts = new long[chunks + 1];
+      starts[0] = bodyStart;
+      starts[chunks] = size;
+      for (int i = 1; i < chunks; i++) {
+        long nominal = bodyStart + (size - bodyStart) * i / chunks;
+        starts[i] = Math.max(starts[i - 1], nextLine(channel, nominal - 1, size));
+      }
+
+      List<Future<Chunk>> parsed = new ArrayList<Future<Chunk>>(chunks);
+      for (int i = 0; i < chunks; i++) {
+        final long start = starts[i];
+        final long end = starts[i + 1];
+        parsed.add(pool.submit(new Callable<Chunk>() {
+          public Chunk call() throws IOException {
+            Chunk chunk = new Chunk(terms.length);
+            if (end > start) {
+              chunk.parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), rowToTermId, dimension);
+            }
+            return chunk;
+          }
+        }));
+      }
+      final List<Chunk> results = new ArrayList<Chunk>(chunks);
+      int malformed = 0;
+      int unknown = 0;
+      for (Future<Chunk> future : parsed) {
+        Chunk chunk = get(future);
+        results.add(chunk);
+        malformed += chunk.malformed;
+        unknown += chunk.unknownRows;
+      }
+      if (malformed > 0) {
+        LOGGER.warn(malformed + " lines do not contain 3 values and were skipped");
+      }
+      if (unknown > 0) {
+        LOGGER.warn(unknown + " values have a row that is not in the dictionary and were skipped");
+      }
+
+      // row offsets, then the first position of every row in every chunk
+      final int[] rowOffsets = new int[terms.length + 1];
+      long nnz = 0;
+      for (int r = 0; r < terms.length; r++) {
+        long next = nnz;
+        for (Chunk chunk : results) {
+          int count = chunk.rowCounts[r];
+          chunk.rowCounts[r] = (int) next;
+          next += count;
+        }
+        if (next > Integer.MAX_VALUE) {
+          throw new RuntimeException("CKB with more than " + Integer.MAX_VALUE + " values can not be loaded on the heap");
+        }
+        nnz = next;
+        rowOffsets[r + 1] = (int) nnz;
+      }
+
+      final int[] columns = new int[(int) nnz];
+      final float[] values = new float[(int) nnz];
+      List<Future<Object>> scattered = new ArrayList<Future<Object>>(chunks);
+      for (final Chunk chunk : results) {
+        scattered.add(pool.submit(new Callable<Object>() {
+          public Object call() {
+            chunk.scatter(columns, values);
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> future : scattered) {
+        get(future);
+      }
+      return new CKBData(terms, rowOffsets, columns, values, idf, dimension);
+    } catch (IOException e) {
+      throw new RuntimeException("DLines can not be read.", e);
+    } finally {
+      pool.shutdownNow();
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          LOGGER.error("File can not be closed.", e);
+        }
+      }
+    }
+  }
+
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while reading the CKB", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("DLines can not be read.", e.getCause());
+    }
+  }
+
+  /**
+   * @return the position following the first line break at or after
+   * <code>from</code>, or <code>size</code> if there is none
+   */
+  private static long nextLine(FileChannel channel, long from, long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    long pos = Math.max(0, from);
+    while (pos < size) {
+      buffer.clear();
+      int read = channel.read(buffer, pos);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += read;
+    }
+    return size;
+  }
+
+  /**
+   * Entries of one byte range and the number of entries of every row in it.
+   */
+  private static final class Chunk {
+
+    final TextCKBReader.Triples triples = new TextCKBReader.Triples();
+    final int[] rowCounts;
+    int malformed;
+    int unknownRows;
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+    private boolean ok;
+
+    Chunk(int termCount) {
+      rowCounts = new int[termCount];
+    }
+
+    void parse(ByteBuffer buffer, int[] rowToTermId, int dimension) {
+      this.buf = buffer;
+      this.pos = 0;
+      this.limit = buffer.limit();
+      while (pos < limit) {
+        skipBlanks();
+        if (pos >= limit) {
+          break;
+        }
+        if (buf.get(pos) == '\n') {
+          pos++;
+          continue;
+        }
+        ok = true;
+        final long row = parseLong();
+        skipBlanks();
+        final long col = parseLong();
+        skipBlanks();
+        final float val = parseFloat();
+        skipBlanks();
+        if (!ok || (pos < limit && buf.get(pos) != '\n')) {
+          malformed++;
+          skipLine();
+          continue;
+        }
+        pos++;
+        if (row < 0 || row >= rowToTermId.length) {
+          unknownRows++;
+          continue;
+        }
+        if (col < 0 || col >= dimension) {
+          throw new RuntimeException("Column " + col + " is out of the CKB dimension " + dimension);
+        }
+        final int termId = rowToTermId[(int) row];
+        triples.add(termId, (int) col, val);
+        rowCounts[termId]++;
+      }
+      buf = null;
+    }
+
+    /**
+     * Writes the entries to their rows; <code>rowCounts</code> must hold the
+     * first position of every row for this chunk.
+     */
+    void scatter(int[] columns, float[] values) {
+      final int[] cursor = rowCounts;
+      for (int i = 0; i < triples.size; i++) {
+        final int at = cursor[triples.rows[i]]++;
+        columns[at] = triples.cols[i];
+        values[at] = triples.vals[i];
+      }
+    }
+
+    private void skipBlanks() {
+      while (pos < limit) {
+        final byte b = buf.get(pos);
+        if (b != ' ' && b != '\t' && b != '\r') {
+          return;
+        }
+        pos++;
+      }
+    }
+
+    private void skipLine() {
+      while (pos < limit && buf.get(pos++) != '\n') {
+      }
+    }
+
+    private boolean atTokenEnd() {
+      if (pos >= limit) {
+        return true;
+      }
+      final byte b = buf.get(pos);
+      return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private long parseLong() {
+      boolean negative = false;
+      if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+        negative = buf.get(pos) == '-';
+        pos++;
+      }
+      long value = 0;
+      int digits = 0;
+      while (pos < limit) {
+        final int d = buf.get(pos) - '0';
+        if (d < 0 || d > 9) {
+          break;
+        }
+        if (++digits > 18) {
+          ok = false;
+        }
+        value = value * 10 + d;
+        pos++;
+      }
+      if (digits == 0 || !atTokenEnd()) {
+        ok = false;
+      }
+      return negative ? -value : value;
+    }
+
+    private float parseFloat() {
+      final int tokenStart = pos;
+      boolean negative = false;
+      if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+        negative = buf.get(pos) == '-';
+        pos++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int exponent = 0;
+      boolean seen = false;
+      while (pos < limit) {
+        final int d = buf.get(pos) - '0';
+        if (d < 0 || d > 9) {
+          break;
+        }
+        seen = true;
+        if (digits < 18) {
+          mantissa = mantissa * 10 + d;
+          if (mantissa != 0) {
+            digits++;
+          }
+        } else {
+          exponent++;
+        }
+        pos++;
+      }
+      if (pos < limit && buf.get(pos) == '.') {
+        pos++;
+        while (pos < limit) {
+          final int d = buf.get(pos) - '0';
+          if (d < 0 || d > 9) {
+            break;
+          }
+          seen = true;
+          if (digits < 18) {
+            mantissa = mantissa * 10 + d;
+            if (mantissa != 0) {
+              digits++;
+            }
+            exponent--;
+          }
+          pos++;
+        }
+      }
+      if (!seen) {
+        // NaN, Infinity and the like
+        pos = tokenStart;
+        return parseFloatToken();
+      }
+      if (pos < limit && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+        pos++;
+        boolean negativeExponent = false;
+        if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+          negativeExponent = buf.get(pos) == '-';
+          pos++;
+        }
+        int e = 0;
+        int edigits = 0;
+        while (pos < limit) {
+          final int d = buf.get(pos) - '0';
+          if (d < 0 || d > 9) {
+            break;
+          }
+          if (e < 10000) {
+            e = e * 10 + d;
+          }
+          edigits++;
+          pos++;
+        }
+        if (edigits == 0) {
+          ok = false;
+        }
+        exponent += negativeExponent ? -e : e;
+      }
+      if (!atTokenEnd()) {
+        ok = false;
+      }
+      double value;
+      if (mantissa == 0) {
+        value = 0;
+      } else if (exponent >= 0 && exponent < POW10.length) {
+        value = mantissa * POW10[exponent];
+      } else if (exponent < 0 && -exponent < POW10.length) {
+        value = mantissa / POW10[-exponent];
+      } else {
+        value = mantissa * Math.pow(10, exponent);
+      }
+      return (float) (negative ? -value : value);
+    }
+
+    private float parseFloatToken() {
+      final int start = pos;
+      while (!atTokenEnd()) {
+        pos++;
+      }
+      byte[] token = new byte[pos - start];
+      for (int i = 0; i < token.length; i++) {
+        token[i] = buf.get(start + i);
+      }
+      try {
+        return Float.parseFloat(new String(token, "US-ASCII"));
+      } catch (NumberFormatException e) {
+        ok = false;
+        return 0f;
+      } catch (IOException e) {
+        ok = false;
+        return 0f;
+      }
+    }
+  }
+}
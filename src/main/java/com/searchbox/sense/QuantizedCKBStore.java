@@ -0,0 +1,243 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+/**
+ * Compressed sparse row store holding its values in 8 or 16 bits. Every row
+ * carries its own scale factor, the largest absolute value of the row, so the
+ * quantization error of a term is relative to its own weights. Columns are
+ * kept as chars, which limits the dimension to 65536. Values are dequantized
+ * while projecting; the row scale is folded into the term weight so the inner
+ * loop costs one extra conversion per value.
+ */
+abstract class QuantizedCKBStore extends CKBStore {
+
+  static final int MAX_DIMENSION = Character.MAX_VALUE + 1;
+
+  final int[] rowOffsets;
+  final char[] columns;
+  final float[] scales;
+  final float[] idf;
+
+  private QuantizedCKBStore(int[] rowOffsets, char[] columns, float[] scales, float[] idf) {
+    this.rowOffsets = rowOffsets;
+    this.columns = columns;
+    this.scales = scales;
+    this.idf = idf;
+  }
+
+  static QuantizedCKBStore create(CKBData data, CognitiveKnowledgeBase.Quantization quantization) {
+    return create(data.rowOffsets, data.columns, data.values, data.idf, data.dimension, quantization);
+  }
+
+  /**
+   * Quantizes the rows of another store, e.g. a memory mapped one, into heap
+   * arrays. Zero values are dropped.
+   */
+  static QuantizedCKBStore copyOf(CKBStore store, int termCount, int dimension,
+                                  CognitiveKnowledgeBase.Quantization quantization) {
+    final long nnz = store.getNonZeroCount();
+    if (nnz > Integer.MAX_VALUE) {
+      throw new RuntimeException("CKB with " + nnz + " values can not be quantized on the heap");
+    }
+    int[] rowOffsets = new int[termCount + 1];
+    int[] columns = new int[(int) nnz];
+    float[] values = new float[(int) nnz];
+    float[] idf = new float[termCount];
+    float[] row = new float[dimension];
+    int pos = 0;
+    for (int t = 0; t < termCount; t++) {
+      store.project(t, 1f, row);
+      for (int c = 0; c < dimension; c++) {
+        if (row[c] != 0f) {
+          columns[pos] = c;
+          values[pos++] = row[c];
+          row[c] = 0f;
+        }
+      }
+      rowOffsets[t + 1] = pos;
+      idf[t] = store.getIdf(t);
+    }
+    return create(rowOffsets, columns, values, idf, dimension, quantization);
+  }
+
+  private static QuantizedCKBStore create(int[] rowOffsets, int[] columns, float[] values, float[] idf,
+                                          int dimension, CognitiveKnowledgeBase.Quantization quantization) {
+    if (dimension > MAX_DIMENSION) {
+      throw new RuntimeException("CKB dimension " + dimension + " is too large to be quantized, at most "
+        + MAX_DIMENSION + " is supported");
+    }
+    final int termCount = rowOffsets.length - 1;
+    final int nnz = rowOffsets[termCount];
+    char[] cols = new char[nnz];
+    for (int i = 0; i < nnz; i++) {
+      cols[i] = (char) columns[i];
+    }
+    float[] scales = new float[termCount];
+    for (int t = 0; t < termCount; t++) {
+      float max = 0f;
+      for (int i = rowOffsets[t]; i < rowOffsets[t + 1]; i++) {
+        max = Math.max(max, Math.abs(values[i]));
+      }
+      scales[t] = max;
+    }
+    switch (quantization) {
+      case INT8:
+        byte[] bytes = new byte[nnz];
+        for (int t = 0; t < termCount; t++) {
+          final float inverse = scales[t] == 0f ? 0f : 127f / scales[t];
+          for (int i = rowOffsets[t]; i < rowOffsets[t + 1]; i++) {
+            bytes[i] = (byte) Math.round(values[i] * inverse);
+          }
+          scales[t] /= 127f;
+        }
+        return new Int8(rowOffsets, cols, bytes, scales, idf);
+      case FLOAT16:
+        short[] halves = new short[nnz];
+        for (int t = 0; t < termCount; t++) {
+          final float inverse = scales[t] == 0f ? 0f : 1f / scales[t];
+          for (int i = rowOffsets[t]; i < rowOffsets[t + 1]; i++) {
+            halves[i] = toHalf(values[i] * inverse);
+          }
+        }
+        return new Float16(rowOffsets, cols, halves, scales, idf);
+      default:
+        throw new IllegalArgumentException("Not a quantized storage: " + quantization);
+    }
+  }
+
+  @Override
+  float getIdf(int termId) {
+    return idf[termId];
+  }
+
+  @Override
+  float[] getIdfTable() {
+    return idf;
+  }
+
+  @Override
+  long getNonZeroCount() {
+    return rowOffsets[rowOffsets.length - 1];
+  }
+
+  long baseSizeInBytes() {
+    return 4L * rowOffsets.length + 2L * columns.length + 4L * scales.length + 4L * idf.length;
+  }
+
+  private static final class Int8 extends QuantizedCKBStore {
+
+    private final byte[] values;
+
+    Int8(int[] rowOffsets, char[] columns, byte[] values, float[] scales, float[] idf) {
+      super(rowOffsets, columns, scales, idf);
+      this.values = values;
+    }
+
+    @Override
+    void project(int termId, float weight, float[] target) {
+      final char[] cols = columns;
+      final byte[] vals = values;
+      final float w = weight * scales[termId];
+      for (int i = rowOffsets[termId], end = rowOffsets[termId + 1]; i < end; i++) {
+        target[cols[i]] += w * vals[i];
+      }
+    }
+
+    @Override
+    long sizeInBytes() {
+      return baseSizeInBytes() + values.length;
+    }
+  }
+
+  private static final class Float16 extends QuantizedCKBStore {
+
+    private final short[] values;
+
+    Float16(int[] rowOffsets, char[] columns, short[] values, float[] scales, float[] idf) {
+      super(rowOffsets, columns, scales, idf);
+      this.values = values;
+    }
+
+    @Override
+    void project(int termId, float weight, float[] target) {
+      final char[] cols = columns;
+      final short[] vals = values;
+      final float[] table = HALF_TO_FLOAT;
+      final float w = weight * scales[termId];
+      for (int i = rowOffsets[termId], end = rowOffsets[termId + 1]; i < end; i++) {
+        target[cols[i]] += w * table[vals[i] & 0xffff];
+      }
+    }
+
+    @Override
+    long sizeInBytes() {
+      return baseSizeInBytes() + 2L * values.length;
+    }
+  }
+
+  /**
+   * Decoded value of every IEEE 754 half precision bit pattern.
+   */
+  private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+  static {
+    for (int h = 0; h < HALF_TO_FLOAT.length; h++) {
+      HALF_TO_FLOAT[h] = fromHalf(h);
+    }
+  }
+
+  static float fromHalf(int half) {
+    final int sign = (half & 0x8000) << 16;
+    final int exponent = (half >>> 10) & 0x1f;
+    final int mantissa = half & 0x3ff;
+    if (exponent == 0) {
+      // zero or subnormal: mantissa * 2^-24
+      final float value = mantissa * 5.9604645E-8f;
+      return sign == 0 ? value : -value;
+    }
+    if (exponent == 0x1f) {
+      return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+    }
+    return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+  }
+
+  /**
+   * Rounds a float to the nearest half precision value.
+   */
+  static short toHalf(float value) {
+    final int bits = Float.floatToIntBits(value);
+    final int sign = (bits >>> 16) & 0x8000;
+    final int abs = bits & 0x7fffffff;
+    if (abs >= 0x7f800000) {
+      // infinity or NaN
+      return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+    }
+    if (abs >= 0x477ff000) {
+      // rounds above the largest half
+      return (short) (sign | 0x7c00);
+    }
+    if (abs >= 0x38800000) {
+      // normal half: rebias the exponent and round the mantissa to nearest even
+      final int rounded = abs + 0xfff + ((abs >>> 13) & 1);
+      return (short) (sign | ((rounded - 0x38000000) >>> 13));
+    }
+    if (abs < 0x33000000) {
+      // below half of the smallest subnormal
+      return (short) sign;
+    }
+    // subnormal half
+    final int exponent = abs >>> 23;
+    final int mantissa = (abs & 0x7fffff) | 0x800000;
+    final int shift = 126 - exponent;
+    final int halfway = 1 << (shift - 1);
+    final int remainder = mantissa & ((1 << shift) - 1);
+    int result = mantissa >>> shift;
+    if (remainder > halfway || (remainder == halfway && (result & 1) != 0)) {
+      result++;
+    }
+    return (short) (sign | result);
+  }
+}
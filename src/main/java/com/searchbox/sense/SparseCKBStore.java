@@ -0,0 +1,54 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+/**
+ * Heap store keeping all term rows in compressed sparse row form: one
+ * contiguous column array, one contiguous value array and a row offset table
+ * indexed by term id.
+ */
+final class SparseCKBStore extends CKBStore {
+
+  private final int[] rowOffsets;
+  private final int[] columns;
+  private final float[] values;
+  private final float[] idf;
+
+  SparseCKBStore(CKBData data) {
+    this.rowOffsets = data.rowOffsets;
+    this.columns = data.columns;
+    this.values = data.values;
+    this.idf = data.idf;
+  }
+
+  @Override
+  void project(int termId, float weight, float[] target) {
+    final int[] cols = columns;
+    final float[] vals = values;
+    for (int i = rowOffsets[termId], end = rowOffsets[termId + 1]; i < end; i++) {
+      target[cols[i]] += weight * vals[i];
+    }
+  }
+
+  @Override
+  float getIdf(int termId) {
+    return idf[termId];
+  }
+
+  @Override
+  float[] getIdfTable() {
+    return idf;
+  }
+
+  @Override
+  long getNonZeroCount() {
+    return rowOffsets[rowOffsets.length - 1];
+  }
+
+  @Override
+  long sizeInBytes() {
+    return 4L * rowOffsets.length + 8L * columns.length + 4L * idf.length;
+  }
+}
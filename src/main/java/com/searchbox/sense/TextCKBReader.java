@@ -0,0 +1,255 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the text CKB files (tdic dictionary, sparse <code>row col value</code>
+ * model and idflog) into a {@link CKBData}.
+ */
+final class TextCKBReader {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TextCKBReader.class);
+
+  private TextCKBReader() {
+  }
+
+  static CKBData read(File dictionaryFile, File modelFile, File idfFile) {
+    return read(dictionaryFile, modelFile, idfFile, 1);
+  }
+
+  /**
+   * @param threads number of threads parsing the model file; with more than
+   *                one the file is split in byte ranges parsed concurrently
+   */
+  static CKBData read(File dictionaryFile, File modelFile, File idfFile, int threads) {
+    LOGGER.info("Loadign CKB dictionary data from: " + dictionaryFile.getPath());
+    final ArrayList<String> rowTerms = loadDictionary(dictionaryFile);
+    LOGGER.info("Dictionary loaded with " + rowTerms.size() + " terms.");
+    LOGGER.info("Loadign idf data from: " + idfFile.getPath());
+    final Map<String, Float> idfMap = loadIdf(idfFile);
+
+    // the dictionary holds every model and idf term once, in byte order
+    Set<String> unique = new HashSet<String>(rowTerms);
+    unique.addAll(idfMap.keySet());
+    BytesRef[] sorted = new BytesRef[unique.size()];
+    int pos = 0;
+    for (String term : unique) {
+      sorted[pos++] = new BytesRef(term);
+    }
+    Arrays.sort(sorted);
+    final String[] terms = new String[sorted.length];
+    final Map<String, Integer> termIds = new HashMap<String, Integer>();
+    final float[] idf = new float[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      terms[i] = sorted[i].utf8ToString();
+      termIds.put(terms[i], i);
+      Float value = idfMap.get(terms[i]);
+      idf[i] = value == null ? Float.NaN : value;
+    }
+    final int[] rowToTermId = new int[rowTerms.size()];
+    for (int i = 0; i < rowToTermId.length; i++) {
+      rowToTermId[i] = termIds.get(rowTerms.get(i));
+    }
+
+    LOGGER.info("Loadign CKB data from: " + modelFile.getPath());
+    if (threads > 1) {
+      final long start = System.currentTimeMillis();
+      CKBData data = ParallelModelReader.read(modelFile, terms, rowToTermId, idf, threads);
+      LOGGER.info("Loaded " + data.getNonZeroCount() + " values in CKB with " + threads + " threads in "
+        + (System.currentTimeMillis() - start) + "ms");
+      return data;
+    }
+    Triples triples = readModel(modelFile, rowToTermId);
+    LOGGER.info("Loaded " + triples.size + " values in CKB");
+
+    return toCSR(terms, triples, idf);
+  }
+
+  /**
+   * Entries of the model in file order, rows already mapped to term ids.
+   */
+  static final class Triples {
+
+    int dimension;
+    int size;
+    int[] rows = new int[1024];
+    int[] cols = new int[1024];
+    float[] vals = new float[1024];
+
+    void add(int row, int col, float val) {
+      if (size == rows.length) {
+        rows = ArrayUtil.grow(rows, size + 1);
+        cols = ArrayUtil.grow(cols, size + 1);
+        vals = ArrayUtil.grow(vals, size + 1);
+      }
+      rows[size] = row;
+      cols[size] = col;
+      vals[size] = val;
+      size++;
+    }
+  }
+
+  private static Triples readModel(File modelFile, int[] rowToTermId) {
+    Triples triples = new Triples();
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(modelFile)));
+      final String metaLine = in.readLine();
+      if (metaLine == null) {
+        throw new RuntimeException("Can't read first line of Sparse CKB file");
+      }
+
+      final String[] parameters = metaLine.split("\\s");
+      int nrow = Integer.valueOf(parameters[0]); //shoudl be equal to terms.size();
+      triples.dimension = Integer.valueOf(parameters[1]);
+      LOGGER.info("Readign CKB data with rows: " + nrow + ", cols:" + triples.dimension);
+
+      String line;
+      while ((line = in.readLine()) != null) {
+        final String[] dline = line.split("\\s");
+        if (dline.length != 3) {
+          LOGGER.warn("Line should contain 3 values!!!");
+          continue;
+        }
+        final int row = Integer.parseInt(dline[0]);
+        final int col = Integer.parseInt(dline[1]);
+        if (row < 0 || row >= rowToTermId.length) {
+          LOGGER.warn("Row " + row + " is not in the dictionary, skipping value");
+          continue;
+        }
+        if (col < 0 || col >= triples.dimension) {
+          throw new RuntimeException("Column " + col + " is out of the CKB dimension " + triples.dimension);
+        }
+        triples.add(rowToTermId[row], col, Float.parseFloat(dline[2]));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("DLines can not be read.", e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.error("File can not be closed.", e);
+        }
+      }
+    }
+    return triples;
+  }
+
+  /**
+   * Counting sort of the entries by term id, keeping file order within a row.
+   */
+  private static CKBData toCSR(String[] terms, Triples triples, float[] idf) {
+    final int[] rowOffsets = new int[terms.length + 1];
+    for (int i = 0; i < triples.size; i++) {
+      rowOffsets[triples.rows[i] + 1]++;
+    }
+    for (int i = 0; i < terms.length; i++) {
+      rowOffsets[i + 1] += rowOffsets[i];
+    }
+    final int[] cursor = Arrays.copyOf(rowOffsets, terms.length);
+    final int[] columns = new int[triples.size];
+    final float[] values = new float[triples.size];
+    for (int i = 0; i < triples.size; i++) {
+      final int at = cursor[triples.rows[i]]++;
+      columns[at] = triples.cols[i];
+      values[at] = triples.vals[i];
+    }
+    return new CKBData(terms, rowOffsets, columns, values, idf, triples.dimension);
+  }
+
+  static ArrayList<String> loadDictionary(File dictionary) {
+    BufferedReader fin = null;
+    ArrayList<String> terms = new ArrayList<String>();
+    try {
+      fin = new BufferedReader(new InputStreamReader(new FileInputStream(dictionary), "UTF-8"));
+      String line = "";
+      int count = 0;
+      while ((line = fin.readLine()) != null) {
+        String data[] = line.split("\t");
+        count++;
+
+        //tdic files from export come of the following format index stem terms.
+        if (data.length > 2) {
+          terms.add(data[1]);
+        } //tdic files form MATLAB are 1 based...
+        else if (data.length == 2) {
+          terms.add(data[1]);//Integer.parseInt(data[0]) - 1);
+        } else if (data.length == 1) {
+          LOGGER.debug(data[0] + " with empty term");
+          terms.add(data[0]);
+        }
+      }
+      LOGGER.debug("READ " + count + " lines and added " + terms.size() + " stems.");
+    } catch (FileNotFoundException e) {
+      throw new RuntimeException("Dictionary file could not be found in: " + dictionary.getAbsolutePath(), e);
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Dictionary can not be created.", e);
+    } catch (IOException e) {
+      throw new RuntimeException("Dictionary can not be created.", e);
+    } finally {
+      if (fin != null) {
+        try {
+          fin.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return terms;
+  }
+
+  static Map<String, Float> loadIdf(File idfFile) {
+    Map<String, Float> idf = new HashMap<String, Float>();
+    try {
+
+      LOGGER.debug("Loading idf from file: " + idfFile.getName());
+      BufferedReader fin = null;
+      try {
+        fin = new BufferedReader(new FileReader(idfFile));
+        String idfline;
+        while ((idfline = fin.readLine()) != null) {
+          final String[] parts = idfline.trim().split("\\s");
+          final String term = parts[0];
+          final float value = Float.parseFloat(parts[1]);
+          idf.put(term, value);
+        }
+      } catch (IOException e) {
+        LOGGER.error("IDF File can not be read. Returning default IDF vector");
+      } finally {
+        if (fin != null) {
+          try {
+            fin.close();
+          } catch (IOException e) {
+            LOGGER.error("IDF File can not be closed.");
+          }
+        }
+      }
+    } finally {
+      LOGGER.info("Loaded " + idf.size() + " items.");
+    }
+    return idf;
+  }
+
+}
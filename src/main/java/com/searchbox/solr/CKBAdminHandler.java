@@ -0,0 +1,75 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.solr;
+
+import com.searchbox.commons.params.SenseParams;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Administration of the CKBs of {@link CKBRegistry} without reloading the
+ * core:
+ * <ul>
+ * <li><code>action=status</code> lists the loaded CKBs and their versions</li>
+ * <li><code>action=reload&amp;ckb=ID</code> loads a new version of a CKB in
+ * the background and publishes it once loaded. Any CKB configuration key
+ * given as a parameter, e.g. <code>binaryFile</code>, replaces the configured
+ * value. With <code>wait=true</code> the request returns once the new version
+ * is published.</li>
+ * </ul>
+ */
+public class CKBAdminHandler extends RequestHandlerBase {
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params = req.getParams();
+    String action = params.get(SenseParams.CKB_ADMIN_ACTION, SenseParams.CKB_ADMIN_STATUS);
+
+    if (SenseParams.CKB_ADMIN_RELOAD.equals(action)) {
+      String ckbID = params.get(SenseParams.SENSE_CKB);
+      if (ckbID == null || !CKBRegistry.isRegistered(ckbID)) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown CKB to reload: " + ckbID);
+      }
+      Map<String, String> overrides = new HashMap<String, String>();
+      for (String key : CKBRegistry.CONFIG_KEYS) {
+        if (params.get(key) != null) {
+          overrides.put(key, params.get(key));
+        }
+      }
+      Future<CKBRegistry.Entry> reload = CKBRegistry.reload(ckbID, overrides);
+      if (params.getBool(SenseParams.CKB_ADMIN_WAIT, false)) {
+        try {
+          rsp.add("version", reload.get().version);
+        } catch (ExecutionException e) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Reloading CKB " + ckbID + " failed",
+            e.getCause());
+        }
+      } else {
+        rsp.add("reload", "started");
+      }
+    } else if (!SenseParams.CKB_ADMIN_STATUS.equals(action)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown action: " + action);
+    }
+    rsp.add("ckbs", CKBRegistry.getStatus());
+  }
+
+  @Override
+  public String getDescription() {
+    return "Searchbox CKB status and reload";
+  }
+
+  @Override
+  public String getSource() {
+    return "";
+  }
+}
@@ -0,0 +1,460 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.solr;
+
+import com.searchbox.lucene.DocumentVectorStore;
+import com.searchbox.sense.CKBLoadOptions;
+import com.searchbox.sense.CKBService;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the CKBs by ID together with the configuration they are loaded
+ * from.
+ * <p/>
+ * A CKB registered lazily is loaded by the first request using it; requests
+ * arriving meanwhile wait for that same load. When the loaded CKBs exceed the
+ * memory budget, the least recently used ones are evicted and loaded again on
+ * their next use.
+ * <p/>
+ * CKBs warmed up at startup load concurrently on a bounded pool. If the core
+ * does not wait for them, a request fails fast with a {@link WarmingException}
+ * until its CKB is ready instead of waiting.
+ * <p/>
+ * A reload builds the new model in the background while the current one
+ * keeps serving, then publishes it with a single map update. Queries keep
+ * the CKB they resolved when they were built, so in-flight requests finish on
+ * the old version; an old or evicted model is released once the last of them
+ * drops it.
+ */
+public final class CKBRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CKBRegistry.class);
+
+  /**
+   * Configuration keys of a CKB that a reload request may override.
+   */
+  static final String[] CONFIG_KEYS = {"name", "baseDirectory", "binaryFile", "modelFile", "idfFile",
+    "dictionaryFile", "type", "quantization", "certaintyValue", "maximumDistance", "verifyChecksum",
+    "parseThreads", "pruneThreshold", "maxDimensions"};
+
+  private static final Map<String, NamedList<String>> configs = new ConcurrentHashMap<String, NamedList<String>>();
+  private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  // loads in progress by ID, package private for the tests to hold one back
+  static final ConcurrentMap<String, FutureTask<Entry>> loads = new ConcurrentHashMap<String, FutureTask<Entry>>();
+  private static final Map<String, Future<Entry>> reloads = new ConcurrentHashMap<String, Future<Entry>>();
+  private static final Map<String, Future<?>> warming = new ConcurrentHashMap<String, Future<?>>();
+  private static final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+  private static final AtomicLong version = new AtomicLong();
+  private static volatile long memoryBudget = Long.MAX_VALUE;
+  private static final ExecutorService reloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "ckb-reload");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private CKBRegistry() {
+  }
+
+  /**
+   * A published CKB and the configuration it was loaded from.
+   */
+  static final class Entry {
+
+    final CognitiveKnowledgeBase ckb;
+    final NamedList<String> config;
+    final long version;
+    final long loadedAt;
+    final long sizeInBytes;
+    volatile long lastUsed;
+
+    Entry(CognitiveKnowledgeBase ckb, NamedList<String> config, long version) {
+      this.ckb = ckb;
+      this.config = config;
+      this.version = version;
+      this.loadedAt = System.currentTimeMillis();
+      this.sizeInBytes = ckb.getSizeInBytes();
+      this.lastUsed = loadedAt;
+    }
+  }
+
+  /**
+   * Thrown while a CKB is still loading in the background, so requests fail
+   * fast with a 503 instead of holding a thread until the model is ready.
+   */
+  public static final class WarmingException extends SolrException {
+
+    private static final long serialVersionUID = 1L;
+
+    WarmingException(String ckbID) {
+      super(ErrorCode.SERVICE_UNAVAILABLE, "CKB " + ckbID + " is warming up, retry later");
+    }
+  }
+
+  /**
+   * Loads the CKB described by <code>config</code> and publishes it under
+   * <code>ckbID</code>.
+   */
+  public static CognitiveKnowledgeBase register(String ckbID, NamedList<String> config) {
+    register(ckbID, config, false);
+    return get(ckbID);
+  }
+
+  /**
+   * Registers the configuration of <code>ckbID</code>. A lazy CKB is only
+   * loaded by the first {@link #get} asking for it.
+   */
+  public static void register(String ckbID, NamedList<String> config, boolean lazy) {
+    configs.put(ckbID, config);
+    release(entries.remove(ckbID));
+    if (!lazy) {
+      get(ckbID);
+    }
+  }
+
+  /**
+   * Loads the registered CKBs <code>ckbIDs</code> in the background, at most
+   * <code>threads</code> at a time, and returns at once. The pool threads end
+   * once every CKB is loaded.
+   *
+   * @return one future per CKB, done once it is loaded or failed to load
+   */
+  public static List<Future<?>> warmUp(Collection<String> ckbIDs, int threads) {
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+    if (ckbIDs.isEmpty()) {
+      return tasks;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ckbIDs.size())),
+      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ckb-warmup");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    final long start = System.currentTimeMillis();
+    for (final String ckbID : ckbIDs) {
+      failures.remove(ckbID);
+      // registered before submitting so requests see the CKB as warming at once
+      FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+        public void run() {
+          try {
+            load(ckbID);
+            LOGGER.info("CKB#" + ckbID + " ready " + (System.currentTimeMillis() - start) + "ms after warm up started");
+          } catch (RuntimeException e) {
+            LOGGER.error("Warming up CKB#" + ckbID + " failed", e);
+            failures.put(ckbID, String.valueOf(e.getMessage()));
+          } finally {
+            warming.remove(ckbID);
+          }
+        }
+      }, null);
+      warming.put(ckbID, task);
+      tasks.add(task);
+      pool.execute(task);
+    }
+    pool.shutdown();
+    return tasks;
+  }
+
+  /**
+   * Waits for the given warm up and fails if any of its CKBs could not be
+   * loaded.
+   */
+  public static void awaitWarmUp(Collection<String> ckbIDs, List<Future<?>> tasks) {
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while loading CKBs", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("CKBs can not be loaded", e.getCause());
+    }
+    // a CKB loaded but evicted since by a later one of the warm up is fine
+    for (String ckbID : ckbIDs) {
+      if (!configs.containsKey(ckbID)) {
+        throw new RuntimeException("CKB " + ckbID + " is not registered");
+      }
+      if (failures.containsKey(ckbID)) {
+        throw new RuntimeException("CKB " + ckbID + " can not be loaded: " + failures.get(ckbID));
+      }
+    }
+  }
+
+  public static boolean isRegistered(String ckbID) {
+    return configs.containsKey(ckbID);
+  }
+
+  /**
+   * Sets the number of bytes the loaded CKBs may use together, see
+   * {@link CognitiveKnowledgeBase#getSizeInBytes()}, which includes the
+   * memory mapped part of binary CKBs. The most recently used
+   * CKB is always kept, even if it alone exceeds the budget.
+   */
+  public static void setMemoryBudget(long bytes) {
+    memoryBudget = bytes;
+    evict(null);
+  }
+
+  /**
+   * @return the current version of <code>ckbID</code>, loading it if needed,
+   * or null if no such CKB is registered
+   */
+  public static CognitiveKnowledgeBase get(String ckbID) {
+    Entry entry = entries.get(ckbID);
+    if (entry == null) {
+      if (warming.containsKey(ckbID)) {
+        throw new WarmingException(ckbID);
+      }
+      entry = load(ckbID);
+      if (entry == null) {
+        return null;
+      }
+    }
+    entry.lastUsed = System.currentTimeMillis();
+    return entry.ckb;
+  }
+
+  /**
+   * Loads <code>ckbID</code> once, however many threads ask for it.
+   */
+  private static Entry load(final String ckbID) {
+    final NamedList<String> config = configs.get(ckbID);
+    if (config == null) {
+      return null;
+    }
+    FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+      public Entry call() {
+        LOGGER.info("Loading CKB#" + ckbID + " with params: " + config);
+        Entry entry = new Entry(load(config), config, version.incrementAndGet());
+        publish(ckbID, entry);
+        return entry;
+      }
+    });
+    FutureTask<Entry> running = loads.putIfAbsent(ckbID, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        loads.remove(ckbID, task);
+      }
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "Interrupted while loading CKB " + ckbID);
+    } catch (ExecutionException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "CKB " + ckbID + " can not be loaded",
+        e.getCause());
+    }
+  }
+
+  private static void publish(String ckbID, Entry entry) {
+    release(entries.put(ckbID, entry));
+    evict(ckbID);
+  }
+
+  private static void release(Entry entry) {
+    if (entry != null) {
+      CKBService.getCKBService().release(entry.ckb);
+      // document vectors stay valid for a new version of the same model
+      final long fingerprint = entry.ckb.getFingerprint();
+      for (Entry live : entries.values()) {
+        if (live.ckb.getFingerprint() == fingerprint) {
+          return;
+        }
+      }
+      DocumentVectorStore.evict(fingerprint);
+    }
+  }
+
+  /**
+   * Drops least recently used CKBs, never <code>keep</code>, until the
+   * loaded ones fit in the memory budget.
+   */
+  private static synchronized void evict(String keep) {
+    while (true) {
+      long total = 0;
+      String oldest = null;
+      long oldestUse = Long.MAX_VALUE;
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        total += e.getValue().sizeInBytes;
+        if (!e.getKey().equals(keep) && e.getValue().lastUsed < oldestUse) {
+          oldest = e.getKey();
+          oldestUse = e.getValue().lastUsed;
+        }
+      }
+      if (total <= memoryBudget || oldest == null || (keep == null && entries.size() == 1)) {
+        return;
+      }
+      Entry evicted = entries.remove(oldest);
+      release(evicted);
+      LOGGER.info("Evicting CKB#" + oldest + " of " + evicted.sizeInBytes + " bytes, " + total
+        + " bytes loaded for a budget of " + memoryBudget);
+    }
+  }
+
+  /**
+   * Global version, increased every time a CKB is published. Caches of
+   * results computed with a CKB add it to their keys.
+   */
+  public static long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Starts reloading <code>ckbID</code> in the background, with the values
+   * of <code>overrides</code> replacing those of its current configuration.
+   * A reload already running for the same ID is returned instead of starting
+   * a second one.
+   */
+  public static synchronized Future<Entry> reload(final String ckbID, final Map<String, String> overrides) {
+    Future<Entry> pending = reloads.get(ckbID);
+    if (pending != null && !pending.isDone()) {
+      return pending;
+    }
+    final NamedList<String> current = configs.get(ckbID);
+    if (current == null) {
+      throw new IllegalArgumentException("Unknown CKB: " + ckbID);
+    }
+    final NamedList<String> config = current.clone();
+    for (Map.Entry<String, String> override : overrides.entrySet()) {
+      int index = config.indexOf(override.getKey(), 0);
+      if (index < 0) {
+        config.add(override.getKey(), override.getValue());
+      } else {
+        config.setVal(index, override.getValue());
+      }
+    }
+    Future<Entry> future = reloader.submit(new Callable<Entry>() {
+      public Entry call() {
+        final long start = System.currentTimeMillis();
+        LOGGER.info("Reloading CKB#" + ckbID + " with params: " + config);
+        try {
+          Entry entry = new Entry(load(config), config, version.incrementAndGet());
+          configs.put(ckbID, config);
+          publish(ckbID, entry);
+          failures.remove(ckbID);
+          LOGGER.info("Published CKB#" + ckbID + " version " + entry.version + " after "
+            + (System.currentTimeMillis() - start) + "ms");
+          return entry;
+        } catch (RuntimeException e) {
+          LOGGER.error("Reloading CKB#" + ckbID + " failed, keeping the current version", e);
+          failures.put(ckbID, String.valueOf(e.getMessage()));
+          throw e;
+        }
+      }
+    });
+    reloads.put(ckbID, future);
+    return future;
+  }
+
+  public static NamedList<Object> getStatus() {
+    NamedList<Object> status = new SimpleOrderedMap<Object>();
+    long total = 0;
+    for (Map.Entry<String, NamedList<String>> e : configs.entrySet()) {
+      NamedList<Object> ckb = new SimpleOrderedMap<Object>();
+      Entry entry = entries.get(e.getKey());
+      ckb.add("loaded", entry != null);
+      if (entry != null) {
+        total += entry.sizeInBytes;
+        ckb.add("name", entry.ckb.getName());
+        ckb.add("version", entry.version);
+        ckb.add("loadedAt", new Date(entry.loadedAt));
+        ckb.add("lastUsed", new Date(entry.lastUsed));
+        ckb.add("terms", entry.ckb.getDictionarySize());
+        ckb.add("dimension", entry.ckb.getDimentionality());
+        ckb.add("nonZeros", entry.ckb.getNonZeroCount());
+        ckb.add("retainedMass", entry.ckb.getRetainedMass());
+        ckb.add("sizeInBytes", entry.sizeInBytes);
+        ckb.add("mappedBytes", entry.ckb.getMappedBytes());
+      }
+      Future<Entry> pending = reloads.get(e.getKey());
+      ckb.add("warming", warming.containsKey(e.getKey()));
+      ckb.add("reloading", pending != null && !pending.isDone());
+      if (failures.containsKey(e.getKey())) {
+        ckb.add("lastError", failures.get(e.getKey()));
+      }
+      ckb.add("config", e.getValue());
+      status.add(e.getKey(), ckb);
+    }
+    status.add("loadedBytes", total);
+    if (memoryBudget != Long.MAX_VALUE) {
+      status.add("memoryBudget", memoryBudget);
+    }
+    NamedList<Object> shared = new SimpleOrderedMap<Object>();
+    for (Map.Entry<String, Integer> e : CKBService.getCKBService().getReferences().entrySet()) {
+      shared.add(e.getKey(), e.getValue());
+    }
+    status.add("sharedModels", shared);
+    status.add("documentVectorSegments", DocumentVectorStore.size());
+    status.add("documentVectorBytes", DocumentVectorStore.sizeInBytes());
+    return status;
+  }
+
+  /**
+   * Loads a CKB through the {@link CKBService}, sharing the model with the
+   * other cores and webapps of the JVM configured with the same files.
+   */
+  static CognitiveKnowledgeBase load(NamedList<String> params) {
+    CKBLoadOptions options = new CKBLoadOptions();
+    if (params.get("type") != null) {
+      options.setType(CognitiveKnowledgeBase.Type.valueOf(params.get("type")));
+    }
+    if (params.get("quantization") != null) {
+      options.setQuantization(CognitiveKnowledgeBase.Quantization.valueOf(params.get("quantization")));
+    }
+    options.setVerifyChecksum(Boolean.parseBoolean(params.get("verifyChecksum")));
+    if (params.get("parseThreads") != null) {
+      options.setParseThreads(Integer.parseInt(params.get("parseThreads")));
+    }
+    if (params.get("pruneThreshold") != null) {
+      options.setPruneThreshold(Float.parseFloat(params.get("pruneThreshold")));
+    }
+    if (params.get("maxDimensions") != null) {
+      options.setMaxDimensions(Integer.parseInt(params.get("maxDimensions")));
+    }
+    if (params.get("binaryFile") != null) {
+      return CKBService.getCKBService().acquireBinary(
+        params.get("name"),
+        params.get("baseDirectory"), params.get("binaryFile"),
+        Float.parseFloat(params.get("certaintyValue")),
+        Float.parseFloat(params.get("maximumDistance")), options);
+    }
+    return CKBService.getCKBService().acquireText(
+      params.get("name"),
+      params.get("baseDirectory"), params.get("modelFile"),
+      //TODO shoudl be logical path
+      params.get("idfFile"), params.get("dictionaryFile"),
+      Float.parseFloat(params.get("certaintyValue")),
+      Float.parseFloat(params.get("maximumDistance")), options);
+  }
+}
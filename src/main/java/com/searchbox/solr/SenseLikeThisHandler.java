@@ -17,9 +17,11 @@
 package com.searchbox.solr;
 
 import com.searchbox.commons.params.SenseParams;
+import com.searchbox.lucene.DocumentVectorStore;
 import com.searchbox.lucene.QueryReductionFilter;
 import com.searchbox.lucene.SenseQuery;
 import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.sense.CognitiveKnowledgeBase;
 import com.searchbox.utils.SolrCacheKey;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
@@ -56,6 +58,7 @@ import org.apache.solr.util.SolrPluginUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -117,6 +120,8 @@ public class SenseLikeThisHandler extends RequestHandlerBase {
 
 
       SolrCacheKey key = new SolrCacheKey(params, toIgnore);
+      // results of a previous CKB version must not be served after a reload
+      key.getSet().add("ckbVersion:" + CKBRegistry.getVersion());
 
       // Set field flags
       ReturnFields returnFields = new SolrReturnFields(req);
@@ -208,7 +213,7 @@ public class SenseLikeThisHandler extends RequestHandlerBase {
       }
 
       sltDocs = (DocListAndSet) sc.get(key.getSet());
-      if (start + rows > 1000 || sltDocs == null || !params.getBool(CommonParams.CACHE, true)) { //not in cache, need to do search
+      if (start + rows > SenseQuery.COLLECTED_ROWS || sltDocs == null || !params.getBool(CommonParams.CACHE, true)) { //not in cache, need to do search
         BooleanQuery bq = new BooleanQuery();
         Document doc = searcher.getIndexReader().document(id);
         bq.add(new TermQuery(new Term(uniqueKeyField.getName(), uniqueKeyField.getType().storedToIndexed(doc.getField(uniqueKeyField.getName())))), BooleanClause.Occur.MUST_NOT);
@@ -234,16 +239,21 @@ public class SenseLikeThisHandler extends RequestHandlerBase {
         LOGGER.debug("Using sense field :\t" + (senseField));
 
         String CKBid = params.get(SenseParams.SENSE_CKB, SenseParams.SENSE_CKB_DEFAULT);
+        // resolved once so the whole request uses the same CKB version
+        CognitiveKnowledgeBase ckb = SenseQParserPlugin.getCKBbyID(CKBid);
 
         RealTermFreqVector rtv = new RealTermFreqVector(id, searcher.getIndexReader(), senseField);
         timinginfo.add("Make real term freq vector", System.currentTimeMillis() - lstartTime);
         lstartTime = System.currentTimeMillis();
 
-        qr = new QueryReductionFilter(rtv, CKBid, searcher, senseField);
+        qr = new QueryReductionFilter(rtv, ckb, searcher, senseField);
         qr.setNumtermstouse(params.getInt(SenseParams.SENSE_QR_NTU, SenseParams.SENSE_QR_NTU_DEFAULT));
         qr.setThreshold(params.getInt(SenseParams.SENSE_QR_THRESH, SenseParams.SENSE_QR_THRESH_DEFAULT));
         qr.setMaxDocSubSet(params.getInt(SenseParams.SENSE_QR_MAXDOC, SenseParams.SENSE_QR_MAXDOC_DEFAULT));
         qr.setMinDocSetSizeForFilter(params.getInt(SenseParams.SENSE_MINDOC4QR, SenseParams.SENSE_MINDOC4QR_DEFAULT));
+        qr.setApproximate(params.getBool(SenseParams.SENSE_ANN, false));
+        qr.setEf(params.getInt(SenseParams.SENSE_ANN_EF, SenseParams.SENSE_ANN_EF_DEFAULT));
+        qr.setGraphDirectory(new File(req.getCore().getDataDir(), DocumentVectorStore.GRAPH_DIRECTORY));
 
         numTermsUsed += qr.getNumtermstouse();
         numTermsConsidered += rtv.getSize();
@@ -261,12 +271,20 @@ public class SenseLikeThisHandler extends RequestHandlerBase {
         numSubset += subFiltered.size();
         LOGGER.info("Number of documents to search:\t" + subFiltered.size());
 
-        slt = new SenseQuery(rtv, senseField, CKBid, params.getFloat(SenseParams.SENSE_WEIGHT, SenseParams.DEFAULT_SENSE_WEIGHT), null);
+        // nearest neighbours are scored even when they share no term with the query
+        slt = new SenseQuery(rtv, senseField, ckb, params.getFloat(SenseParams.SENSE_WEIGHT, SenseParams.DEFAULT_SENSE_WEIGHT), null,
+          qr.getNearestFilter());
+        // the rejection bounds rank by score, they hold for Sort.RELEVANCE over the same number of rows
+        slt.setTopK(SenseQuery.COLLECTED_ROWS, params.getInt(SenseParams.SENSE_HEAD_DIMS, SenseParams.SENSE_HEAD_DIMS_DEFAULT));
+        slt.setDotProduct(SenseParams.SENSE_SIMILARITY_DOT.equals(
+          params.get(SenseParams.SENSE_SIMILARITY, SenseParams.SENSE_SIMILARITY_DISTANCE)));
+        slt.setVectorField(params.get(SenseParams.SENSE_VECTOR_FIELD));
+        slt.setVectorCache(params.getBool(SenseParams.SENSE_VECTOR_CACHE, false));
         LOGGER.debug("Setup sense query:\t" + (System.currentTimeMillis() - lstartTime));
         timinginfo.add("Setup sense query", System.currentTimeMillis() - lstartTime);
         lstartTime = System.currentTimeMillis();
 
-        sltDocs = searcher.getDocListAndSet(slt, subFiltered, Sort.RELEVANCE, 0, 1000, flags);
+        sltDocs = searcher.getDocListAndSet(slt, subFiltered, Sort.RELEVANCE, 0, SenseQuery.COLLECTED_ROWS, flags);
         timinginfo.add("Do sense query", System.currentTimeMillis() - lstartTime);
         lstartTime = System.currentTimeMillis();
 
@@ -354,6 +372,9 @@ public class SenseLikeThisHandler extends RequestHandlerBase {
           rsp.add("exception_during_debug", SolrException.toStr(e));
         }
       }
+    } catch (CKBRegistry.WarmingException e) {
+      numErrors++;
+      throw e;
     } catch (Exception e) {
       numErrors++;
       e.printStackTrace();
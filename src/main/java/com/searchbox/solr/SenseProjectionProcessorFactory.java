@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.solr;
+
+import com.searchbox.commons.params.SenseParams;
+import com.searchbox.lucene.SenseQuery;
+import com.searchbox.lucene.SenseVectors;
+import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Projects the sense field of every added document through a CKB once, at
+ * index time, and stores the vectors the scorer needs (see
+ * {@link SenseVectors}) in a field of type {@link SenseVectorField}. Queries
+ * naming that field with <code>slt.vf</code> read them instead of the term
+ * vectors. Configured with:
+ * <pre>
+ *   &lt;processor class="com.searchbox.solr.SenseProjectionProcessorFactory"&gt;
+ *     &lt;str name="ckb"&gt;1&lt;/str&gt;
+ *     &lt;str name="sourceField"&gt;article-abstract&lt;/str&gt;
+ *     &lt;str name="vectorField"&gt;article-abstract-sense&lt;/str&gt;
+ *   &lt;/processor&gt;
+ * </pre>
+ * The documents have to be indexed again when the CKB changes, until then
+ * they are scored from their term vectors.
+ */
+public class SenseProjectionProcessorFactory extends UpdateRequestProcessorFactory {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SenseProjectionProcessorFactory.class);
+  private String ckbID = SenseParams.SENSE_CKB_DEFAULT;
+  private String sourceField = SenseParams.DEFAULT_SENSE_FIELD;
+  private String vectorField;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args) {
+    super.init(args);
+    if (args.get("ckb") != null) {
+      ckbID = String.valueOf(args.get("ckb"));
+    }
+    if (args.get("sourceField") != null) {
+      sourceField = String.valueOf(args.get("sourceField"));
+    }
+    if (args.get("vectorField") == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "vectorField must be configured");
+    }
+    vectorField = String.valueOf(args.get("vectorField"));
+    LOGGER.info("Projecting " + sourceField + " with CKB " + ckbID + " into " + vectorField);
+  }
+
+  @Override
+  public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+    return new SenseProjectionProcessor(req, next);
+  }
+
+  private class SenseProjectionProcessor extends UpdateRequestProcessor {
+
+    private final SolrQueryRequest req;
+
+    SenseProjectionProcessor(SolrQueryRequest req, UpdateRequestProcessor next) {
+      super(next);
+      this.req = req;
+    }
+
+    @Override
+    public void processAdd(AddUpdateCommand cmd) throws IOException {
+      SolrInputDocument doc = cmd.getSolrInputDocument();
+      Collection<Object> values = doc.getFieldValues(sourceField);
+      if (values != null && !values.isEmpty()) {
+        CognitiveKnowledgeBase ckb = SenseQParserPlugin.getCKBbyID(ckbID);
+        if (ckb == null) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unknown CKB to project with: " + ckbID);
+        }
+        // the values of a multi valued field add up in its term vector
+        StringBuilder text = new StringBuilder();
+        for (Object value : values) {
+          text.append(value).append(' ');
+        }
+        RealTermFreqVector rtfv = new RealTermFreqVector(text.toString(),
+          SenseQuery.getAnalyzerForField(req.getSchema(), sourceField));
+        doc.setField(vectorField, SenseVectors.encode(ckb, rtfv));
+      }
+      super.processAdd(cmd);
+    }
+  }
+}
@@ -13,9 +13,10 @@ import org.apache.solr.search.QParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -23,19 +24,31 @@ import java.util.List;
 public class SenseQParserPlugin extends ExtendedDismaxQParserPlugin {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SenseQParserPlugin.class);
-  private static HashMap<String, CognitiveKnowledgeBase> ckbByID = new HashMap<String, CognitiveKnowledgeBase>();
   private SolrParams defaults;
 
 
+  /**
+   * @return the current version of the CKB, see {@link CKBRegistry}
+   */
   public static CognitiveKnowledgeBase getCKBbyID(String ckbID) {
-    CognitiveKnowledgeBase ckb = null;
-    try {
-      ckb = ckbByID.get(ckbID);
-    } catch (Exception e) { // should be a more accurate exception catch
+    CognitiveKnowledgeBase ckb = CKBRegistry.get(ckbID);
+    if (ckb == null) {
       LOGGER.error("Missing CKB with ckbID\t" + ckbID);
-    } finally {
-      return ckb;
     }
+    return ckb;
+  }
+
+  /**
+   * Copies the entries of a CKB configuration as strings, whatever their
+   * type in solrconfig.xml.
+   */
+  private static NamedList<String> toConfig(NamedList<?> params) {
+    NamedList<String> config = new NamedList<String>();
+    for (int i = 0; i < params.size(); i++) {
+      Object value = params.getVal(i);
+      config.add(params.getName(i), value == null ? null : String.valueOf(value));
+    }
+    return config;
   }
 
   @Override
@@ -49,24 +62,31 @@ public class SenseQParserPlugin extends ExtendedDismaxQParserPlugin {
     super.init(nl);
 
 
-    LOGGER.info("#### eagerly initializing CognitiveKnowledgeBases");
+    boolean lazy = Boolean.parseBoolean(String.valueOf(nl.get("lazyLoading")));
+    if (nl.get("memoryBudgetMB") != null) {
+      CKBRegistry.setMemoryBudget(Long.parseLong(String.valueOf(nl.get("memoryBudgetMB"))) * 1024 * 1024);
+    }
+
+    LOGGER.info("#### " + (lazy ? "lazily" : "eagerly") + " initializing CognitiveKnowledgeBases");
+    List<String> ckbIDs = new ArrayList<String>();
     List lst = nl.getAll("ckbs");
     for (Iterator<NamedList> it = lst.iterator(); it.hasNext(); ) {
-      NamedList ckb = it.next();
-
-      LOGGER.info("\tbuilding CKB#" + ckb.getName(0) + " with params: " + ckb.get(ckb.getName(0)));
-      NamedList<String> params = (NamedList) ckb.get(ckb.getName(0));
-      if (params.get("type").equals("SPARSE")) {
-        CognitiveKnowledgeBase ckb_ = CognitiveKnowledgeBase.loadSparseCKB(
-          params.get("name"),
-          params.get("baseDirectory"), params.get("modelFile"),
-          //TODO shoudl be logical path
-          params.get("idfFile"), params.get("dictionaryFile"),
-          Float.parseFloat(params.get("certaintyValue")),
-          Float.parseFloat(params.get("maximumDistance")));
-        ckbByID.put(ckb.getName(0), ckb_);
+      NamedList ckbs = it.next();
+      for (int i = 0; i < ckbs.size(); i++) {
+        LOGGER.info("\tregistering CKB#" + ckbs.getName(i) + " with params: " + ckbs.getVal(i));
+        CKBRegistry.register(ckbs.getName(i), toConfig((NamedList<?>) ckbs.getVal(i)), true);
+        ckbIDs.add(ckbs.getName(i));
       }
-
+    }
+    boolean background = Boolean.parseBoolean(String.valueOf(nl.get("backgroundLoading")));
+    if (!lazy) {
+      int threads = nl.get("loadThreads") == null ? Runtime.getRuntime().availableProcessors()
+        : Integer.parseInt(String.valueOf(nl.get("loadThreads")));
+      List<Future<?>> loads = CKBRegistry.warmUp(ckbIDs, threads);
+      if (!background) {
+        CKBRegistry.awaitWarmUp(ckbIDs, loads);
+      }
+      // otherwise the core comes up at once and requests get a 503 until their CKB is ready
     }
 
     Object o = nl.get("defaults");
@@ -74,7 +94,7 @@ public class SenseQParserPlugin extends ExtendedDismaxQParserPlugin {
       defaults = SolrParams.toSolrParams((NamedList) o);
     }
 
-    LOGGER.info("---- CKBs Initialization DONE");
+    LOGGER.info("---- CKBs Initialization DONE" + (!lazy && background ? ", loading in the background" : ""));
   }
 
 }
\ No newline at end of file
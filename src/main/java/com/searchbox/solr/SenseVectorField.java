@@ -0,0 +1,56 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.solr;
+
+import org.apache.lucene.document.StraightBytesDocValuesField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.Base64;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Field type keeping the vectors of {@link SenseProjectionProcessorFactory}
+ * in binary DocValues of variable length, neither indexed nor stored:
+ * <pre>
+ *   &lt;fieldType name="senseVector" class="com.searchbox.solr.SenseVectorField"/&gt;
+ *   &lt;field name="article-abstract-sense" type="senseVector"/&gt;
+ * </pre>
+ * Values are byte arrays, or base64 strings when sent by a client.
+ */
+public class SenseVectorField extends FieldType {
+
+  @Override
+  public IndexableField createField(SchemaField field, Object value, float boost) {
+    BytesRef bytes;
+    if (value instanceof byte[]) {
+      bytes = new BytesRef((byte[]) value);
+    } else if (value instanceof ByteBuffer && ((ByteBuffer) value).hasArray()) {
+      ByteBuffer buffer = (ByteBuffer) value;
+      bytes = new BytesRef(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    } else {
+      bytes = new BytesRef(Base64.base64ToByteArray(value.toString()));
+    }
+    return new StraightBytesDocValuesField(field.getName(), bytes, false);
+  }
+
+  @Override
+  public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+    BytesRef bytes = f.binaryValue();
+    writer.writeStr(name, Base64.byteArrayToBase64(bytes.bytes, bytes.offset, bytes.length), false);
+  }
+
+  @Override
+  public SortField getSortField(SchemaField field, boolean top) {
+    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Can not sort on the sense vector field "
+      + field.getName());
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.solr;
+
+import com.searchbox.commons.params.SenseParams;
+import com.searchbox.lucene.DocumentVectorStore;
+import com.searchbox.lucene.HnswGraph;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.QuerySenderListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Warms a new searcher for sense queries before it is registered: projects
+ * the documents of its segments into the {@link DocumentVectorStore} in
+ * parallel, then runs the sample queries of the <code>queries</code> list
+ * like {@link QuerySenderListener}, which fills the
+ * <code>com.searchbox.sltcache</code> of the searcher through the handlers.
+ * Segments kept from the previous searcher already have their vectors, so
+ * only the new ones are projected.
+ * <pre>
+ *   &lt;listener event="newSearcher" class="com.searchbox.solr.SenseWarmupListener"&gt;
+ *     &lt;str name="ckb"&gt;pubmed&lt;/str&gt;
+ *     &lt;str name="senseField"&gt;article-abstract&lt;/str&gt;
+ *     &lt;int name="threads"&gt;4&lt;/int&gt;
+ *     &lt;bool name="graphs"&gt;true&lt;/bool&gt;
+ *     &lt;arr name="queries"&gt;
+ *       &lt;lst&gt;&lt;str name="qt"&gt;/sense&lt;/str&gt;&lt;str name="q"&gt;heart failure&lt;/str&gt;&lt;str name="slt.vc"&gt;true&lt;/str&gt;&lt;/lst&gt;
+ *     &lt;/arr&gt;
+ *   &lt;/listener&gt;
+ * </pre>
+ * Without <code>ckb</code> only the queries are run. The vectors are used by
+ * queries passing <code>slt.vc=true</code> with the same CKB and field. With
+ * <code>graphs</code> the HNSW graphs searched by <code>slt.ann=true</code>
+ * are built too, or loaded from the <code>sense-hnsw</code> directory of the
+ * data directory, where the files of merged segments are then deleted.
+ */
+public class SenseWarmupListener extends QuerySenderListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SenseWarmupListener.class);
+  // documents projected by one task, so that large segments are split
+  private static final int RANGE = 8192;
+
+  public SenseWarmupListener(SolrCore core) {
+    super(core);
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    if (args.get("ckb") != null) {
+      fillVectors(newSearcher);
+    }
+    super.newSearcher(newSearcher, currentSearcher);
+  }
+
+  private void fillVectors(SolrIndexSearcher searcher) {
+    final String ckbID = String.valueOf(args.get("ckb"));
+    final String senseField = args.get("senseField") == null ? SenseParams.DEFAULT_SENSE_FIELD
+      : String.valueOf(args.get("senseField"));
+    final int threads = args.get("threads") == null ? Runtime.getRuntime().availableProcessors()
+      : Integer.parseInt(String.valueOf(args.get("threads")));
+    final CognitiveKnowledgeBase ckb;
+    try {
+      ckb = SenseQParserPlugin.getCKBbyID(ckbID);
+    } catch (SolrException e) {
+      LOGGER.warn("Not projecting documents for the new searcher: " + e.getMessage());
+      return;
+    }
+    if (ckb == null) {
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    ExecutorService pool = newPool(threads);
+    List<Future<Integer>> tasks = new ArrayList<Future<Integer>>();
+    final List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    for (AtomicReaderContext leaf : leaves) {
+      final AtomicReader reader = leaf.reader();
+      for (int from = 0; from < reader.maxDoc(); from += RANGE) {
+        final int begin = from;
+        final int end = Math.min(from + RANGE, reader.maxDoc());
+        tasks.add(pool.submit(new Callable<Integer>() {
+          public Integer call() throws Exception {
+            return DocumentVectorStore.fill(reader, senseField, ckb, begin, end);
+          }
+        }));
+      }
+    }
+    pool.shutdown();
+    int projected = 0;
+    try {
+      for (Future<Integer> task : tasks) {
+        projected += task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pool.shutdownNow();
+      LOGGER.warn("Interrupted while projecting documents for the new searcher");
+      return;
+    } catch (ExecutionException e) {
+      pool.shutdownNow();
+      LOGGER.error("Projecting documents for the new searcher failed", e.getCause());
+      return;
+    }
+    LOGGER.info("Projected " + projected + " documents of " + leaves.size() + " segments with CKB#" + ckbID
+      + " in " + (System.currentTimeMillis() - start) + "ms");
+    if (Boolean.parseBoolean(String.valueOf(args.get("graphs")))) {
+      buildGraphs(leaves, senseField, ckb, threads);
+    }
+  }
+
+  private void buildGraphs(List<AtomicReaderContext> leaves, final String senseField, final CognitiveKnowledgeBase ckb,
+                           int threads) {
+    final long start = System.currentTimeMillis();
+    final File directory = new File(core.getDataDir(), DocumentVectorStore.GRAPH_DIRECTORY);
+    ExecutorService pool = newPool(threads);
+    List<Future<HnswGraph>> tasks = new ArrayList<Future<HnswGraph>>();
+    Set<String> segments = new HashSet<String>();
+    for (AtomicReaderContext leaf : leaves) {
+      final AtomicReader reader = leaf.reader();
+      if (reader instanceof SegmentReader) {
+        segments.add(((SegmentReader) reader).getSegmentName());
+      }
+      tasks.add(pool.submit(new Callable<HnswGraph>() {
+        public HnswGraph call() throws Exception {
+          return DocumentVectorStore.getGraph(reader, senseField, ckb, directory);
+        }
+      }));
+    }
+    pool.shutdown();
+    try {
+      for (Future<HnswGraph> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pool.shutdownNow();
+      LOGGER.warn("Interrupted while building the document graphs of the new searcher");
+      return;
+    } catch (ExecutionException e) {
+      pool.shutdownNow();
+      LOGGER.error("Building the document graphs of the new searcher failed", e.getCause());
+      return;
+    }
+    DocumentVectorStore.pruneGraphs(directory, segments);
+    LOGGER.info("Document graphs of " + leaves.size() + " segments ready in "
+      + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  private static ExecutorService newPool(int threads) {
+    return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "sense-warmup");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class TestHnswGraph {
+
+  private static final int DIMENSION = 16;
+  private static final int SIZE = 3000;
+  // magic, version, dimension, m and size come before the entry node and the top level
+  private static final int ENTRY_OFFSET = 20;
+  private static final int MAX_LEVEL_OFFSET = 24;
+
+  private static float[][] unitVectors(Random random, int count) {
+    float[][] vectors = new float[count][DIMENSION];
+    for (float[] vector : vectors) {
+      float norm = 0;
+      for (int i = 0; i < DIMENSION; i++) {
+        vector[i] = (float) random.nextGaussian();
+        norm += vector[i] * vector[i];
+      }
+      norm = (float) Math.sqrt(norm);
+      for (int i = 0; i < DIMENSION; i++) {
+        vector[i] /= norm;
+      }
+    }
+    return vectors;
+  }
+
+  private static float dot(float[] a, float[] b) {
+    float dot = 0;
+    for (int i = 0; i < DIMENSION; i++) {
+      dot += a[i] * b[i];
+    }
+    return dot;
+  }
+
+  /**
+   * @return the k documents of highest dot product with query, by brute force
+   */
+  private static Set<Integer> exact(float[][] vectors, float[] query, int k, FixedBitSet accept) {
+    Integer[] docs = new Integer[vectors.length];
+    for (int doc = 0; doc < docs.length; doc++) {
+      docs[doc] = doc;
+    }
+    final float[] scores = new float[vectors.length];
+    for (int doc = 0; doc < docs.length; doc++) {
+      scores[doc] = dot(vectors[doc], query);
+    }
+    Arrays.sort(docs, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Float.compare(scores[b], scores[a]);
+      }
+    });
+    Set<Integer> best = new HashSet<Integer>();
+    for (int i = 0; i < docs.length && best.size() < k; i++) {
+      if (accept == null || accept.get(docs[i])) {
+        best.add(docs[i]);
+      }
+    }
+    return best;
+  }
+
+  private static HnswGraph build(float[][] vectors) {
+    HnswGraph graph = new HnswGraph(DIMENSION);
+    for (int doc = 0; doc < vectors.length; doc++) {
+      graph.add(doc, vectors[doc]);
+    }
+    return graph;
+  }
+
+  @Test
+  public void testRecall() {
+    Random random = new Random(7);
+    float[][] vectors = unitVectors(random, SIZE);
+    HnswGraph graph = build(vectors);
+    assertEquals(SIZE, graph.size());
+
+    final int k = 10;
+    int[] hits = new int[k];
+    float[] scores = new float[k];
+    int found = 0;
+    for (float[] query : unitVectors(random, 50)) {
+      assertEquals(k, graph.search(query, k, 100, null, hits, scores));
+      Set<Integer> expected = exact(vectors, query, k, null);
+      for (int i = 0; i < k; i++) {
+        assertEquals(dot(vectors[hits[i]], query), scores[i], 0f);
+        assertTrue(i == 0 || scores[i] <= scores[i - 1]);
+        if (expected.contains(hits[i])) {
+          found++;
+        }
+      }
+    }
+    assertTrue("Recall " + found / 500f, found >= 0.95f * 500);
+  }
+
+  @Test
+  public void testOnlyAcceptedDocuments() {
+    Random random = new Random(3);
+    float[][] vectors = unitVectors(random, SIZE);
+    HnswGraph graph = build(vectors);
+    FixedBitSet accept = new FixedBitSet(SIZE);
+    for (int doc = 0; doc < SIZE; doc += 3) {
+      accept.set(doc);
+    }
+
+    final int k = 10;
+    int[] hits = new int[k];
+    float[] scores = new float[k];
+    int found = 0;
+    for (float[] query : unitVectors(random, 50)) {
+      assertEquals(k, graph.search(query, k, 100, accept, hits, scores));
+      Set<Integer> expected = exact(vectors, query, k, accept);
+      for (int i = 0; i < k; i++) {
+        assertTrue(accept.get(hits[i]));
+        if (expected.contains(hits[i])) {
+          found++;
+        }
+      }
+    }
+    assertTrue("Recall " + found / 500f, found >= 0.95f * 500);
+  }
+
+  @Test
+  public void testReadWrite() throws Exception {
+    Random random = new Random(5);
+    HnswGraph graph = build(unitVectors(random, 500));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    graph.write(new DataOutputStream(bytes));
+    HnswGraph read = HnswGraph.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(graph.size(), read.size());
+
+    int[] hits = new int[10];
+    float[] scores = new float[10];
+    int[] readHits = new int[10];
+    float[] readScores = new float[10];
+    for (float[] query : unitVectors(random, 20)) {
+      assertEquals(graph.search(query, 10, 50, null, hits, scores), read.search(query, 10, 50, null, readHits, readScores));
+      assertArrayEquals(hits, readHits);
+      assertArrayEquals(scores, readScores, 0f);
+    }
+  }
+
+  private static HnswGraph read(ByteBuffer bytes) throws IOException {
+    return HnswGraph.read(new DataInputStream(new ByteArrayInputStream(bytes.array())));
+  }
+
+  private static ByteBuffer write(HnswGraph graph) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    graph.write(new DataOutputStream(bytes));
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  @Test
+  public void testRejectsMissingEntry() throws Exception {
+    ByteBuffer bytes = write(build(unitVectors(new Random(9), 100)));
+    bytes.putInt(ENTRY_OFFSET, -1);
+    try {
+      read(bytes);
+      fail("Graph without entry node read");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupted HNSW graph"));
+    }
+  }
+
+  @Test
+  public void testRejectsWrongMaxLevel() throws Exception {
+    ByteBuffer bytes = write(build(unitVectors(new Random(9), 100)));
+    bytes.putInt(MAX_LEVEL_OFFSET, bytes.getInt(MAX_LEVEL_OFFSET) + 1);
+    try {
+      read(bytes);
+      fail("Graph with a wrong top level read");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("entry node"));
+    }
+  }
+}
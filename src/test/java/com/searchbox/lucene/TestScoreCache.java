@@ -0,0 +1,58 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class TestScoreCache {
+
+  @Test
+  public void testMatchesHashMap() {
+    ScoreCache cache = new ScoreCache();
+    cache.use(1, 0);
+    Map<Integer, Float> expected = new HashMap<Integer, Float>();
+    Random random = new Random(11);
+    for (int i = 0; i < 5000; i++) {
+      int doc = random.nextInt(3000);
+      float score = random.nextFloat();
+      cache.put(doc, score);
+      expected.put(doc, score);
+    }
+    assertEquals(expected.size(), cache.size());
+    for (int doc = 0; doc < 3000; doc++) {
+      Float score = expected.get(doc);
+      if (score == null) {
+        assertTrue(Float.isNaN(cache.get(doc)));
+      } else {
+        assertEquals(score, cache.get(doc), 0f);
+      }
+    }
+  }
+
+  @Test
+  public void testClearedForAnotherSegmentOrSearch() {
+    ScoreCache cache = new ScoreCache();
+    cache.use(1, 0);
+    cache.put(7, 1.5f);
+    cache.use(1, 0);
+    assertEquals(1.5f, cache.get(7), 0f);
+    cache.use(1, 1);
+    assertTrue(Float.isNaN(cache.get(7)));
+    cache.put(7, 1.5f);
+    cache.use(2, 1);
+    assertTrue(Float.isNaN(cache.get(7)));
+    assertEquals(0, cache.size());
+  }
+}
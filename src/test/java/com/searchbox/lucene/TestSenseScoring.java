@@ -0,0 +1,368 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.lucene;
+
+import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import com.searchbox.sense.TestBinaryCKB;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StraightBytesDocValuesField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scores an in-memory index with term vectors against the small CKB of
+ * {@link TestBinaryCKB}.
+ */
+public class TestSenseScoring {
+
+  static final String FIELD = "text";
+  static final String VECTORS = "text-sense";
+  static final String[] TERMS = {"fish", "swim", "dog", "happi", "jump", "cat", "unknown"};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Directory directory;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private CognitiveKnowledgeBase ckb;
+
+  @Before
+  public void setUp() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    ckb = CognitiveKnowledgeBase.loadSparseCKB("test", dir.getPath() + File.separator, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+
+    directory = new RAMDirectory();
+    WhitespaceAnalyzer analyzer = new WhitespaceAnalyzer(Version.LUCENE_41);
+    IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_41, analyzer));
+    FieldType type = new FieldType(TextField.TYPE_NOT_STORED);
+    type.setStoreTermVectors(true);
+    Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 1 + random.nextInt(12); j > 0; j--) {
+        text.append(TERMS[random.nextInt(TERMS.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(new Field(FIELD, text.toString(), type));
+      // some documents are left to their term vectors
+      if (i % 7 != 0) {
+        byte[] vectors = SenseVectors.encode(ckb, new RealTermFreqVector(text.toString(), analyzer));
+        doc.add(new StraightBytesDocValuesField(VECTORS, new BytesRef(vectors), false));
+      }
+      writer.addDocument(doc);
+      if (i % 100 == 99) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    reader = DirectoryReader.open(directory);
+    searcher = new IndexSearcher(reader);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    reader.close();
+    directory.close();
+  }
+
+  static RealTermFreqVector query() {
+    Map<String, Float> tf = new HashMap<String, Float>();
+    tf.put("fish", 2f);
+    tf.put("happi", 1f);
+    tf.put("jump", 1f);
+    return new RealTermFreqVector(tf);
+  }
+
+  private Map<Integer, Float> scores(ScoreDoc[] hits) {
+    Map<Integer, Float> scores = new HashMap<Integer, Float>();
+    for (ScoreDoc hit : hits) {
+      scores.put(hit.doc, hit.score);
+    }
+    return scores;
+  }
+
+  /**
+   * Checks that a search collecting the k best documents, with
+   * <code>headDimensions</code>, ranks and scores them as an exhaustive one
+   * and only gives upper bounds to the others.
+   */
+  private void assertKeepsTopK(int k, int headDimensions, float senseWeight) throws Exception {
+    assertKeepsTopK(k, headDimensions, senseWeight, false);
+  }
+
+  private void assertKeepsTopK(int k, int headDimensions, float senseWeight, boolean dotProduct) throws Exception {
+    SenseQuery exhaustive = new SenseQuery(query(), FIELD, ckb, senseWeight, null);
+    exhaustive.setDotProduct(dotProduct);
+    ScoreDoc[] exact = searcher.search(exhaustive, 300).scoreDocs;
+    SenseQuery bounded = new SenseQuery(query(), FIELD, ckb, senseWeight, null);
+    bounded.setDotProduct(dotProduct);
+    bounded.setTopK(k, headDimensions);
+    // searched twice to check the threshold starts over with every search
+    searcher.search(bounded, 300);
+    ScoreDoc[] hits = searcher.search(bounded, 300).scoreDocs;
+
+    assertEquals(exact.length, hits.length);
+    for (int i = 0; i < k; i++) {
+      assertEquals(exact[i].doc, hits[i].doc);
+      assertEquals(exact[i].score, hits[i].score, 0f);
+    }
+    Map<Integer, Float> exactScores = scores(exact);
+    int rejected = 0;
+    for (ScoreDoc hit : hits) {
+      assertTrue(hit.score >= exactScores.get(hit.doc) - 1e-5f);
+      if (hit.score != exactScores.get(hit.doc)) {
+        rejected++;
+      }
+    }
+    if (headDimensions > 0) {
+      // distances abandoned over the 4 dimensions of the test CKB are full
+      // ones and give exact scores, only head bounds show up
+      assertTrue("No document was rejected", rejected > 0);
+    }
+  }
+
+  @Test
+  public void testProgressiveScoringKeepsTopK() throws Exception {
+    assertKeepsTopK(20, 2, 0.8f);
+  }
+
+  @Test
+  public void testEarlyAbandonKeepsTopK() throws Exception {
+    assertKeepsTopK(20, 0, 0.8f);
+    assertKeepsTopK(20, 0, 1f);
+    assertKeepsTopK(20, 0, 0f);
+  }
+
+  @Test
+  public void testStoredVectorsScoreAsTermVectors() throws Exception {
+    for (float senseWeight : new float[]{0f, 0.8f, 1f}) {
+      ScoreDoc[] expected = searcher.search(new SenseQuery(query(), FIELD, ckb, senseWeight, null), 300).scoreDocs;
+      SenseQuery stored = new SenseQuery(query(), FIELD, ckb, senseWeight, null);
+      stored.setVectorField(VECTORS);
+      stored.setTopK(20, 16);
+      ScoreDoc[] hits = searcher.search(stored, 300).scoreDocs;
+      for (int i = 0; i < 20; i++) {
+        assertEquals(expected[i].doc, hits[i].doc);
+        assertEquals(expected[i].score, hits[i].score, 0f);
+      }
+    }
+  }
+
+  @Test
+  public void testVectorCacheScoresAsTermVectors() throws Exception {
+    final int segments = DocumentVectorStore.size();
+    for (float senseWeight : new float[]{0.8f, 1f}) {
+      ScoreDoc[] expected = searcher.search(new SenseQuery(query(), FIELD, ckb, senseWeight, null), 300).scoreDocs;
+      // the first search fills the cache, the second reads it
+      for (int pass = 0; pass < 2; pass++) {
+        SenseQuery cached = new SenseQuery(query(), FIELD, ckb, senseWeight, null);
+        cached.setVectorCache(true);
+        ScoreDoc[] hits = searcher.search(cached, 300).scoreDocs;
+        assertEquals(expected.length, hits.length);
+        for (int i = 0; i < hits.length; i++) {
+          assertEquals(expected[i].doc, hits[i].doc);
+          assertEquals(expected[i].score, hits[i].score, 0f);
+        }
+      }
+    }
+    assertEquals(segments + reader.leaves().size(), DocumentVectorStore.size());
+    reader.close();
+    assertEquals(segments, DocumentVectorStore.size());
+  }
+
+  @Test
+  public void testFilledVectorsScoreAsTermVectors() throws Exception {
+    int projected = 0;
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      AtomicReader segment = leaf.reader();
+      // two ranges, as the warmup listener splits segments
+      projected += DocumentVectorStore.fill(segment, FIELD, ckb, 0, segment.maxDoc() / 2);
+      projected += DocumentVectorStore.fill(segment, FIELD, ckb, segment.maxDoc() / 2, segment.maxDoc());
+    }
+    assertEquals(reader.numDocs(), projected);
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      assertEquals(0, DocumentVectorStore.fill(leaf.reader(), FIELD, ckb, 0, leaf.reader().maxDoc()));
+    }
+    ScoreDoc[] expected = searcher.search(new SenseQuery(query(), FIELD, ckb, 0.8f, null), 300).scoreDocs;
+    SenseQuery cached = new SenseQuery(query(), FIELD, ckb, 0.8f, null);
+    cached.setVectorCache(true);
+    ScoreDoc[] hits = searcher.search(cached, 300).scoreDocs;
+    assertEquals(expected.length, hits.length);
+    for (int i = 0; i < hits.length; i++) {
+      assertEquals(expected[i].doc, hits[i].doc);
+      assertEquals(expected[i].score, hits[i].score, 0f);
+    }
+  }
+
+  /**
+   * With a sense weight of 1, dot product scores are 1 + the cosine the
+   * graphs search by.
+   */
+  @Test
+  public void testGraphsFindNearestDocuments() throws Exception {
+    File graphs = folder.newFolder("graphs");
+    SenseQuery exhaustive = new SenseQuery(query(), FIELD, ckb, 1f, null);
+    exhaustive.setDotProduct(true);
+    ScoreDoc[] expected = searcher.search(exhaustive, 20).scoreDocs;
+    float[] query = ckb.getFullCkbVector(query()).getUnitVector().getData();
+
+    float[] nearest = nearest(reader, graphs, query);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i].score, 1 + nearest[i], 1e-5f);
+    }
+    File[] files = graphs.listFiles();
+    assertEquals(reader.leaves().size(), files.length);
+    for (File file : files) {
+      file.setLastModified(0);
+    }
+    // the segments of another reader have new cores, their graphs are read
+    DirectoryReader other = DirectoryReader.open(directory);
+    assertArrayEquals(nearest, nearest(other, graphs, query), 0f);
+    for (File file : graphs.listFiles()) {
+      assertEquals(0, file.lastModified());
+    }
+    other.close();
+  }
+
+  /**
+   * Documents given as candidates are scored even when they contain no query
+   * term, like the nearest neighbours a handler finds with slt.ann.
+   */
+  @Test
+  public void testCandidatesWithoutQueryTerms() throws Exception {
+    float[] query = ckb.getFullCkbVector(query()).getUnitVector().getData();
+    final FixedBitSet candidates = new FixedBitSet(reader.maxDoc());
+    int[] hits = new int[300];
+    float[] scores = new float[300];
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      HnswGraph graph = DocumentVectorStore.getGraph(leaf.reader(), FIELD, ckb, null);
+      for (int i = graph.search(query, 300, 300, null, hits, scores) - 1; i >= 0; i--) {
+        candidates.set(leaf.docBase + hits[i]);
+      }
+    }
+    Filter filter = new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) {
+        FixedBitSet bits = new FixedBitSet(context.reader().maxDoc());
+        for (int doc = 0; doc < bits.length(); doc++) {
+          if (candidates.get(context.docBase + doc)) {
+            bits.set(doc);
+          }
+        }
+        return BitsFilteredDocIdSet.wrap(bits, acceptDocs);
+      }
+    };
+
+    Map<Integer, Float> withTerms = scores(searcher.search(new SenseQuery(query(), FIELD, ckb, 1f, null), 300).scoreDocs);
+    ScoreDoc[] found = searcher.search(new SenseQuery(query(), FIELD, ckb, 1f, null, filter), 300).scoreDocs;
+    assertEquals(candidates.cardinality(), found.length);
+    int withoutTerms = 0;
+    for (ScoreDoc hit : found) {
+      assertTrue(candidates.get(hit.doc));
+      if (withTerms.containsKey(hit.doc)) {
+        assertEquals(withTerms.get(hit.doc), hit.score, 0f);
+      } else {
+        withoutTerms++;
+      }
+    }
+    assertTrue("No document without query terms was scored", withoutTerms > 0);
+  }
+
+  @Test
+  public void testGraphBuiltInBackground() throws Exception {
+    AtomicReader segment = reader.leaves().get(0).reader();
+    HnswGraph graph = DocumentVectorStore.getGraph(segment, FIELD, ckb, null, false);
+    for (long deadline = System.currentTimeMillis() + 10000; graph == null && System.currentTimeMillis() < deadline; ) {
+      Thread.sleep(10);
+      graph = DocumentVectorStore.getGraph(segment, FIELD, ckb, null, false);
+    }
+    assertNotNull(graph);
+    assertSame(graph, DocumentVectorStore.getGraph(segment, FIELD, ckb, null));
+  }
+
+  private float[] nearest(DirectoryReader reader, File graphs, float[] query) throws Exception {
+    List<Float> nearest = new ArrayList<Float>();
+    int[] hits = new int[20];
+    float[] scores = new float[20];
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      HnswGraph graph = DocumentVectorStore.getGraph(leaf.reader(), FIELD, ckb, graphs);
+      for (int i = graph.search(query, 20, 100, leaf.reader().getLiveDocs(), hits, scores) - 1; i >= 0; i--) {
+        nearest.add(scores[i]);
+      }
+    }
+    Collections.sort(nearest, Collections.reverseOrder());
+    float[] best = new float[20];
+    for (int i = 0; i < best.length; i++) {
+      best[i] = nearest.get(i);
+    }
+    return best;
+  }
+
+  @Test
+  public void testDotProductKeepsTopK() throws Exception {
+    assertKeepsTopK(20, 2, 0.8f, true);
+    assertKeepsTopK(20, 2, 1f, true);
+  }
+
+  /**
+   * With a single half, 2 - d and 1 + cos of unit vectors are related by
+   * cos = 1 - d^2 / 2 and rank the documents the same.
+   */
+  @Test
+  public void testDotProductRanksAsDistance() throws Exception {
+    for (float senseWeight : new float[]{0f, 1f}) {
+      ScoreDoc[] distance = searcher.search(new SenseQuery(query(), FIELD, ckb, senseWeight, null), 300).scoreDocs;
+      SenseQuery dot = new SenseQuery(query(), FIELD, ckb, senseWeight, null);
+      dot.setDotProduct(true);
+      ScoreDoc[] cosine = searcher.search(dot, 300).scoreDocs;
+      assertEquals(distance.length, cosine.length);
+      for (int i = 0; i < distance.length; i++) {
+        final float d = 2 - distance[i].score;
+        assertEquals(2 - d * d / 2, cosine[i].score, 1e-5f);
+      }
+    }
+  }
+}
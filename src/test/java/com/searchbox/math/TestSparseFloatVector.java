@@ -0,0 +1,81 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class TestSparseFloatVector {
+
+  /**
+   * Random sorted ids out of <code>range</code>, with room left after
+   * <code>size</code> filled with garbage.
+   */
+  private static SparseFloatVector random(Random random, int range) {
+    int[] ids = new int[range + 3];
+    float[] weights = new float[range + 3];
+    int size = 0;
+    for (int id = 0; id < range; id++) {
+      if (random.nextBoolean()) {
+        ids[size] = id;
+        weights[size++] = (float) random.nextGaussian();
+      }
+    }
+    for (int zz = size; zz < ids.length; zz++) {
+      ids[zz] = zz;
+      weights[zz] = 100f;
+    }
+    return new SparseFloatVector(ids, weights, size);
+  }
+
+  private static RealTermFreqVector asTerms(SparseFloatVector vector) {
+    String[] terms = new String[vector.getIds().length];
+    for (int zz = 0; zz < terms.length; zz++) {
+      terms[zz] = String.format("t%05d", vector.getIds()[zz]);
+    }
+    return new RealTermFreqVector(terms, vector.getWeights(), vector.getSize());
+  }
+
+  @Test
+  public void testMatchesTermMerge() {
+    Random random = new Random(3);
+    for (int i = 0; i < 200; i++) {
+      SparseFloatVector left = random(random, 1 + random.nextInt(30));
+      SparseFloatVector right = random(random, 1 + random.nextInt(30));
+      float expected = asTerms(left).getSquaredDistance(asTerms(right), Float.POSITIVE_INFINITY);
+      assertEquals(expected, left.getSquaredDistance(right, 1f, Float.POSITIVE_INFINITY), 0f);
+      // the arrays past size are not part of the vectors
+      assertEquals((float) Math.sqrt(expected), asTerms(left).getDistance(asTerms(right)), 0f);
+
+      float dot = 0;
+      for (int l = 0; l < left.getSize(); l++) {
+        for (int r = 0; r < right.getSize(); r++) {
+          if (left.getIds()[l] == right.getIds()[r]) {
+            dot += left.getWeights()[l] * right.getWeights()[r];
+          }
+        }
+      }
+      assertEquals(dot, left.dot(right), 1e-5f);
+    }
+  }
+
+  @Test
+  public void testScaleAndLimit() {
+    SparseFloatVector left = new SparseFloatVector(new int[]{1, 4}, new float[]{2f, 4f}, 2);
+    SparseFloatVector right = new SparseFloatVector(new int[]{2, 4}, new float[]{1f, 1f}, 2);
+    // (1, 0, 2) against (0, 1, 1) over ids 1, 2, 4
+    assertEquals(3f, left.getSquaredDistance(right, 0.5f, Float.POSITIVE_INFINITY), 0f);
+    assertEquals(4f, left.dot(right), 0f);
+    // stops past the limit, after the first two ids
+    assertEquals(2f, left.getSquaredDistance(right, 0.5f, 1.5f), 0f);
+    assertEquals(20f, left.getSquaredNorm(), 0f);
+  }
+}
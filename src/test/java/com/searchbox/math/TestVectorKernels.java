@@ -0,0 +1,58 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class TestVectorKernels {
+
+  private static float[] random(Random random, int length) {
+    float[] vector = new float[length];
+    for (int i = 0; i < length; i++) {
+      vector[i] = (float) random.nextGaussian();
+    }
+    return vector;
+  }
+
+  @Test
+  public void testUnrolledMatchesScalar() {
+    VectorKernels scalar = VectorKernels.scalar();
+    VectorKernels unrolled = VectorKernels.unrolled();
+    Random random = new Random(7);
+    for (int length = 0; length < 40; length++) {
+      float[] a = random(random, length);
+      float[] b = random(random, length);
+      for (int from = 0; from <= Math.min(length, 5); from++) {
+        assertEquals(scalar.squaredDistance(a, b, from, length), unrolled.squaredDistance(a, b, from, length), 1e-4f);
+        assertEquals(scalar.dot(a, b, from, length), unrolled.dot(a, b, from, length), 1e-4f);
+        assertEquals(scalar.squaredNorm(a, from, length), unrolled.squaredNorm(a, from, length), 1e-4f);
+      }
+    }
+  }
+
+  @Test
+  public void testAbandonedDistanceCarriesOnFromBlock() {
+    Random random = new Random(11);
+    float[] a = random(random, 200);
+    float[] b = random(random, 200);
+    DoubleFullVector vector = new DoubleFullVector(a);
+    final float full = vector.getDistance(b);
+    final int head = 3 * DoubleFullVector.BLOCK;
+    float partial = vector.getSquaredDistance(b, 0, head);
+    assertEquals(full, (float) Math.sqrt(vector.getSquaredDistance(b, head, partial, Float.POSITIVE_INFINITY)), 0f);
+
+    // abandoned sums are larger than the limit and never larger than the full sum
+    float abandoned = vector.getSquaredDistance(b, full * full / 4);
+    assertEquals(true, abandoned > full * full / 4);
+    assertEquals(true, abandoned <= full * full);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.perf;
+
+import com.searchbox.math.DoubleFullVector;
+import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.sense.CKBLoadOptions;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the memory saved by the quantized CKB storages and the ranking
+ * drift they cause against the float model: random pseudo documents are
+ * ranked by their ckb distance to random pseudo queries and the top of each
+ * ranking is compared with the float ranking.
+ * <p/>
+ * Usage: QuantizationDrift baseDirectory modelFile idfFile dictionaryFile [docs] [queries]
+ */
+public class QuantizationDrift {
+
+  private static final int TOP = 10;
+
+  public static void main(String... args) {
+    if (args.length < 4) {
+      System.out.println("Usage: QuantizationDrift baseDirectory modelFile idfFile dictionaryFile [docs] [queries]");
+      return;
+    }
+    int ndocs = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+    int nqueries = args.length > 5 ? Integer.parseInt(args[5]) : 100;
+
+    CognitiveKnowledgeBase reference = load(args, CognitiveKnowledgeBase.Quantization.NONE);
+    List<String> terms = new ArrayList<String>(reference.getTerms());
+    Random random = new Random(42);
+    List<RealTermFreqVector> docs = pseudoDocuments(terms, ndocs, 100, random);
+    List<RealTermFreqVector> queries = pseudoDocuments(terms, nqueries, 5, random);
+    float[][] expected = distances(reference, docs, queries);
+    System.out.println("NONE\t" + reference.getSizeInBytes() + " bytes");
+
+    for (CognitiveKnowledgeBase.Quantization quantization : new CognitiveKnowledgeBase.Quantization[]{
+      CognitiveKnowledgeBase.Quantization.INT8, CognitiveKnowledgeBase.Quantization.FLOAT16}) {
+      CognitiveKnowledgeBase ckb = load(args, quantization);
+      float[][] actual = distances(ckb, docs, queries);
+      double overlap = 0;
+      double maxDrift = 0;
+      double meanDrift = 0;
+      for (int q = 0; q < nqueries; q++) {
+        overlap += overlap(top(expected[q]), top(actual[q]));
+        for (int d = 0; d < ndocs; d++) {
+          double drift = Math.abs(expected[q][d] - actual[q][d]);
+          maxDrift = Math.max(maxDrift, drift);
+          meanDrift += drift;
+        }
+      }
+      System.out.println(quantization + "\t" + ckb.getSizeInBytes() + " bytes ("
+        + ((float) reference.getSizeInBytes() / ckb.getSizeInBytes()) + "x smaller)"
+        + "\ttop" + TOP + " overlap: " + (overlap / nqueries)
+        + "\tmean distance drift: " + (meanDrift / (nqueries * (double) ndocs))
+        + "\tmax distance drift: " + maxDrift);
+    }
+  }
+
+  private static CognitiveKnowledgeBase load(String[] args, CognitiveKnowledgeBase.Quantization quantization) {
+    CKBLoadOptions options = new CKBLoadOptions();
+    options.setQuantization(quantization);
+    return CognitiveKnowledgeBase.loadTextCKB(quantization.toString(), args[0], args[1], args[2], args[3], 1f, 1f,
+      options);
+  }
+
+  private static List<RealTermFreqVector> pseudoDocuments(List<String> terms, int count, int length, Random random) {
+    List<RealTermFreqVector> docs = new ArrayList<RealTermFreqVector>(count);
+    for (int i = 0; i < count; i++) {
+      Map<String, Float> tf = new HashMap<String, Float>();
+      for (int j = 0; j < length; j++) {
+        String term = terms.get(random.nextInt(terms.size()));
+        Float freq = tf.get(term);
+        tf.put(term, freq == null ? 1f : freq + 1f);
+      }
+      docs.add(new RealTermFreqVector(tf));
+    }
+    return docs;
+  }
+
+  private static float[][] distances(CognitiveKnowledgeBase ckb, List<RealTermFreqVector> docs,
+                                     List<RealTermFreqVector> queries) {
+    List<DoubleFullVector> dvectors = new ArrayList<DoubleFullVector>(docs.size());
+    for (RealTermFreqVector doc : docs) {
+      dvectors.add(ckb.getFullCkbVector(doc).getUnitVector());
+    }
+    float[][] distances = new float[queries.size()][docs.size()];
+    for (int q = 0; q < queries.size(); q++) {
+      DoubleFullVector qvector = ckb.getFullCkbVector(queries.get(q)).getUnitVector();
+      for (int d = 0; d < dvectors.size(); d++) {
+        distances[q][d] = dvectors.get(d).getDistance(qvector);
+      }
+    }
+    return distances;
+  }
+
+  private static Set<Integer> top(float[] distances) {
+    Set<Integer> top = new HashSet<Integer>();
+    boolean[] taken = new boolean[distances.length];
+    for (int k = 0; k < TOP && k < distances.length; k++) {
+      int best = -1;
+      for (int d = 0; d < distances.length; d++) {
+        if (!taken[d] && (best < 0 || distances[d] < distances[best])) {
+          best = d;
+        }
+      }
+      taken[best] = true;
+      top.add(best);
+    }
+    return top;
+  }
+
+  private static double overlap(Set<Integer> expected, Set<Integer> actual) {
+    int common = 0;
+    for (Integer doc : actual) {
+      if (expected.contains(doc)) {
+        common++;
+      }
+    }
+    return (double) common / expected.size();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.perf;
+
+import com.searchbox.lucene.SenseQuery;
+import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import com.searchbox.sense.TestBinaryCKB;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Bytes allocated by the searching thread per sense query over an in-memory
+ * index, using the small CKB of {@link TestBinaryCKB}. Needs a JVM
+ * reporting thread allocations (HotSpot).
+ * <p/>
+ * Usage: ScoringAllocationBenchmark [documents]
+ */
+public class ScoringAllocationBenchmark {
+
+  private static final String FIELD = "text";
+  private static final String[] TERMS = {"fish", "swim", "dog", "happi", "jump", "cat", "unknown"};
+  private static final int SEARCHES = 200;
+
+  public static void main(String... args) throws Exception {
+    final int documents = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    File dir = File.createTempFile("ckb", "");
+    dir.delete();
+    dir.mkdirs();
+    TestBinaryCKB.writeTextCKB(dir);
+    CognitiveKnowledgeBase ckb = CognitiveKnowledgeBase.loadSparseCKB("bench", dir.getPath() + File.separator,
+      "test.cache", "test.idflog", "test.tdic", 1f, 1f);
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory,
+      new IndexWriterConfig(Version.LUCENE_41, new WhitespaceAnalyzer(Version.LUCENE_41)));
+    FieldType type = new FieldType(TextField.TYPE_NOT_STORED);
+    type.setStoreTermVectors(true);
+    Random random = new Random(42);
+    for (int i = 0; i < documents; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 1 + random.nextInt(12); j > 0; j--) {
+        text.append(TERMS[random.nextInt(TERMS.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(new Field(FIELD, text.toString(), type));
+      writer.addDocument(doc);
+    }
+    writer.close();
+    DirectoryReader reader = DirectoryReader.open(directory);
+    IndexSearcher searcher = new IndexSearcher(reader);
+
+    Map<String, Float> tf = new HashMap<String, Float>();
+    tf.put("fish", 2f);
+    tf.put("happi", 1f);
+    tf.put("jump", 1f);
+    RealTermFreqVector query = new RealTermFreqVector(tf);
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long thread = Thread.currentThread().getId();
+    // warm up
+    for (int i = 0; i < SEARCHES; i++) {
+      search(searcher, query, ckb);
+    }
+    long hits = 0;
+    final long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < SEARCHES; i++) {
+      hits += search(searcher, query, ckb);
+    }
+    final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+    System.out.println(documents + " documents, " + hits / SEARCHES + " hits per search: "
+      + allocated / SEARCHES + " bytes allocated per search, " + allocated / hits + " per hit");
+    reader.close();
+  }
+
+  private static int search(IndexSearcher searcher, RealTermFreqVector query, CognitiveKnowledgeBase ckb)
+    throws Exception {
+    SenseQuery slt = new SenseQuery(query, FIELD, ckb, 0.8f, null);
+    slt.setTopK(1000, 0);
+    return searcher.search(slt, 1000).totalHits;
+  }
+}
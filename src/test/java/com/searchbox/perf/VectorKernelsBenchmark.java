@@ -0,0 +1,94 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.perf;
+
+import com.searchbox.math.VectorKernels;
+
+import java.util.Random;
+
+/**
+ * Times the scalar and unrolled {@link VectorKernels} on the CKB dimensions
+ * we use, over a set of vectors larger than the L1 cache. Each timing is the
+ * best of several trials.
+ * <p/>
+ * Usage: VectorKernelsBenchmark [dimension...]
+ */
+public class VectorKernelsBenchmark {
+
+  private static final int VECTORS = 512;
+  private static final int ROUNDS = 200;
+  private static final int TRIALS = 7;
+
+  public static void main(String... args) {
+    int[] dimensions = {100, 200, 300, 500};
+    if (args.length > 0) {
+      dimensions = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        dimensions[i] = Integer.parseInt(args[i]);
+      }
+    }
+    VectorKernels scalar = VectorKernels.scalar();
+    VectorKernels unrolled = VectorKernels.unrolled();
+    System.out.println("dim\tkernel\tscalar ns\tunrolled ns\tspeedup");
+    for (int dim : dimensions) {
+      float[][] vectors = new float[VECTORS][dim];
+      Random random = new Random(dim);
+      for (float[] vector : vectors) {
+        for (int i = 0; i < dim; i++) {
+          vector[i] = (float) random.nextGaussian();
+        }
+      }
+      float[] query = vectors[0];
+      // warm up both before timing
+      for (int i = 0; i < 5; i++) {
+        run(scalar, vectors, query);
+        run(unrolled, vectors, query);
+      }
+      for (String kernel : new String[]{"distance", "dot", "norm"}) {
+        double s = Double.MAX_VALUE;
+        double u = Double.MAX_VALUE;
+        for (int trial = 0; trial < TRIALS; trial++) {
+          s = Math.min(s, time(scalar, kernel, vectors, query));
+          u = Math.min(u, time(unrolled, kernel, vectors, query));
+        }
+        System.out.println(dim + "\t" + kernel + "\t" + String.format("%.1f\t%.1f\t%.2fx", s, u, s / u));
+      }
+    }
+  }
+
+  private static float run(VectorKernels kernels, float[][] vectors, float[] query) {
+    float sink = 0;
+    for (float[] vector : vectors) {
+      sink += kernels.squaredDistance(vector, query, 0, query.length);
+      sink += kernels.dot(vector, query, 0, query.length);
+      sink += kernels.squaredNorm(vector, 0, query.length);
+    }
+    return sink;
+  }
+
+  /**
+   * @return nanoseconds per call
+   */
+  private static double time(VectorKernels kernels, String kernel, float[][] vectors, float[] query) {
+    float sink = 0;
+    final long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      for (float[] vector : vectors) {
+        if (kernel.equals("distance")) {
+          sink += kernels.squaredDistance(vector, query, 0, query.length);
+        } else if (kernel.equals("dot")) {
+          sink += kernels.dot(vector, query, 0, query.length);
+        } else {
+          sink += kernels.squaredNorm(vector, 0, query.length);
+        }
+      }
+    }
+    final long elapsed = System.nanoTime() - start;
+    if (sink == 42) {
+      System.out.println();
+    }
+    return (double) elapsed / ((long) ROUNDS * vectors.length);
+  }
+}
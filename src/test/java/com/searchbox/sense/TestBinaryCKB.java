@@ -0,0 +1,403 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.sense;
+
+import com.searchbox.math.DoubleFullVector;
+import com.searchbox.math.RealTermFreqVector;
+import com.searchbox.math.VectorUtils;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ *
+ */
+public class TestBinaryCKB {
+
+  static final String[] TERMS = {"fish", "swim", "dog", "happi", "jump", "cat"};
+  static final int DIM = 4;
+  // row col value, rows index TERMS
+  static final float[][] MODEL = {
+    {0, 0, 0.5f}, {0, 2, -0.25f},
+    {1, 1, 0.75f}, {1, 3, 0.125f}, {1, 0, 0.1f},
+    {2, 2, 1.5f},
+    {3, 0, -0.3f}, {3, 1, 0.3f}, {3, 2, 0.6f}, {3, 3, 0.9f},
+    {4, 3, 2.0f}
+  };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  public static void writeTextCKB(File dir) throws IOException {
+    Writer tdic = new OutputStreamWriter(new FileOutputStream(new File(dir, "test.tdic")), "UTF-8");
+    Writer idf = new OutputStreamWriter(new FileOutputStream(new File(dir, "test.idflog")), "UTF-8");
+    for (int i = 0; i < TERMS.length; i++) {
+      tdic.write((i + 1) + "\t" + TERMS[i] + "\n");
+      if (!TERMS[i].equals("cat")) {
+        idf.write(TERMS[i] + "\t" + (1.0f + i * 0.5f) + "\n");
+      }
+    }
+    tdic.close();
+    idf.close();
+
+    Writer model = new OutputStreamWriter(new FileOutputStream(new File(dir, "test.cache")), "UTF-8");
+    model.write(TERMS.length + " " + DIM + "\n");
+    for (float[] entry : MODEL) {
+      model.write((int) entry[0] + " " + (int) entry[1] + " " + entry[2] + "\n");
+    }
+    model.close();
+  }
+
+  static RealTermFreqVector document() {
+    Map<String, Float> tf = new HashMap<String, Float>();
+    tf.put("fish", 4f);
+    tf.put("swim", 2f);
+    tf.put("happi", 9f);
+    tf.put("cat", 1f);
+    tf.put("unknown", 3f);
+    return new RealTermFreqVector(tf);
+  }
+
+  static void assertSameModel(CognitiveKnowledgeBase expected, CognitiveKnowledgeBase actual) {
+    assertSameModel(expected, actual, 1e-6f);
+  }
+
+  static void assertSameModel(CognitiveKnowledgeBase expected, CognitiveKnowledgeBase actual, float delta) {
+    assertEquals(expected.getDimentionality(), actual.getDimentionality());
+    assertEquals(expected.getDictionarySize(), actual.getDictionarySize());
+
+    DoubleFullVector ev = expected.getFullCkbVector(document());
+    DoubleFullVector av = actual.getFullCkbVector(document());
+    for (int i = 0; i < expected.getDimentionality(); i++) {
+      assertEquals("Projection differs on dimension " + i, ev.getData()[i], av.getData()[i], delta);
+    }
+    for (String term : TERMS) {
+      assertEquals(expected.getFullCkbVector(term, 2f).getNorm(), actual.getFullCkbVector(term, 2f).getNorm(), delta);
+      assertEquals(expected.getTermId(term), actual.getTermId(term));
+      assertTrue(actual.getTermId(term) >= 0);
+    }
+    assertEquals(-1, actual.getTermId("unknown"));
+    assertEquals(-1, actual.getTermId(new BytesRef("ca")));
+
+    RealTermFreqVector et = expected.getTfIdfVector(document());
+    RealTermFreqVector at = actual.getTfIdfVector(document());
+    assertEquals(et.getSize(), at.getSize());
+    Map<String, Float> weights = new HashMap<String, Float>();
+    for (int i = 0; i < et.getSize(); i++) {
+      weights.put(et.getTerms()[i], et.getFreqs()[i]);
+    }
+    for (int i = 0; i < at.getSize(); i++) {
+      assertEquals(weights.get(at.getTerms()[i]), at.getFreqs()[i], 1e-6f);
+    }
+  }
+
+  @Test
+  public void testMappedMatchesText() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    CognitiveKnowledgeBase text = CognitiveKnowledgeBase.loadSparseCKB("text", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+
+    // sorted dictionary and CSR rows written by hand
+    String[] sorted = {"cat", "dog", "fish", "happi", "jump", "swim"};
+    int[] rowOffsets = {0, 0, 1, 3, 7, 8, 11};
+    int[] columns = {2, 0, 2, 0, 1, 2, 3, 3, 1, 3, 0};
+    float[] values = {1.5f, 0.5f, -0.25f, -0.3f, 0.3f, 0.6f, 0.9f, 2.0f, 0.75f, 0.125f, 0.1f};
+    float[] idf = {Float.NaN, 2.0f, 1.0f, 2.5f, 3.0f, 1.5f};
+    CKBFormat.write(new File(dir, "test.ckb"), new CKBData(sorted, rowOffsets, columns, values, idf, DIM));
+
+    CognitiveKnowledgeBase mapped = CognitiveKnowledgeBase.loadBinaryCKB("mapped", base, "test.ckb", 1f, 1f);
+    assertTrue(mapped.getTerms().contains("happi"));
+    assertEquals(new ArrayList<String>(text.getTerms()), new ArrayList<String>(mapped.getTerms()));
+    assertSameModel(text, mapped);
+
+    // the file is counted once, the idf and term norms copied onto the heap on top of it
+    assertEquals(new File(dir, "test.ckb").length(), mapped.getMappedBytes());
+    assertEquals(mapped.getMappedBytes() + 2 * 4L * sorted.length, mapped.getSizeInBytes());
+    assertEquals(0, text.getMappedBytes());
+  }
+
+  @Test
+  public void testTfIdfByTermIdMatchesTerms() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    CognitiveKnowledgeBase ckb = CognitiveKnowledgeBase.loadSparseCKB("text", dir.getPath() + File.separator,
+      "test.cache", "test.idflog", "test.tdic", 1f, 1f);
+    RealTermFreqVector doc = document();
+    RealTermFreqVector expected = ckb.getTfIdfVector(doc);
+
+    int[] termIds = new int[doc.getSize()];
+    float[] freqs = new float[doc.getSize()];
+    int size = 0;
+    for (int zz = 0; zz < doc.getSize(); zz++) {
+      int termId = ckb.getTermId(doc.getTerms()[zz]);
+      if (termId >= 0) {
+        termIds[size] = termId;
+        freqs[size++] = doc.getFreqs()[zz];
+      }
+    }
+    float[] weights = new float[size];
+    assertEquals(expected.getNorm(), ckb.getTfIdf(termIds, freqs, size, weights), 1e-6f);
+    Map<String, Float> byTerm = new HashMap<String, Float>();
+    for (int zz = 0; zz < expected.getSize(); zz++) {
+      byTerm.put(expected.getTerms()[zz], expected.getFreqs()[zz]);
+    }
+    for (int zz = 0; zz < size; zz++) {
+      Float weight = byTerm.get(ckb.getTerms().toArray(new String[0])[termIds[zz]]);
+      assertEquals(weight == null ? 0f : weight, weights[zz], 0f);
+    }
+  }
+
+  @Test
+  public void testProjectIntoMatchesFullVector() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    CognitiveKnowledgeBase ckb = CognitiveKnowledgeBase.loadSparseCKB("text", dir.getPath() + File.separator,
+      "test.cache", "test.idflog", "test.tdic", 1f, 1f);
+    RealTermFreqVector doc = document();
+    int[] termIds = new int[doc.getSize()];
+    float[] freqs = new float[doc.getSize()];
+    int size = 0;
+    for (int zz = 0; zz < doc.getSize(); zz++) {
+      int termId = ckb.getTermId(doc.getTerms()[zz]);
+      if (termId >= 0) {
+        termIds[size] = termId;
+        freqs[size++] = doc.getFreqs()[zz];
+      }
+    }
+    DoubleFullVector expected = ckb.getFullCkbVector(termIds, freqs, size);
+    // buffers left dirty by a previous document
+    float[] projection = new float[ckb.getDimentionality()];
+    float[] unit = new float[ckb.getDimentionality()];
+    Arrays.fill(projection, 3f);
+    Arrays.fill(unit, 3f);
+    ckb.projectInto(termIds, freqs, size, projection);
+    assertEquals(expected.getNorm(), VectorUtils.normalizeInto(projection, unit), 0f);
+    float[] expectedUnit = expected.getUnitVector().getData();
+    for (int zz = 0; zz < unit.length; zz++) {
+      assertEquals(expected.getData()[zz], projection[zz], 0f);
+      assertEquals(expectedUnit[zz], unit[zz], 0f);
+    }
+  }
+
+  @Test
+  public void testTermNormsMatchProjection() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"),
+      new File(dir, "test.ckb"));
+    CognitiveKnowledgeBase text = CognitiveKnowledgeBase.loadSparseCKB("text", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+    CognitiveKnowledgeBase mapped = CognitiveKnowledgeBase.loadBinaryCKB("mapped", base, "test.ckb", 1f, 1f);
+
+    for (String term : TERMS) {
+      float expected = text.getFullCkbVector(term, 0.5f).getNorm();
+      assertEquals(term, expected, text.getTermNorm(term, 0.5f), 1e-6f);
+      assertEquals(term, expected, mapped.getTermNorm(term, 0.5f), 1e-6f);
+    }
+    assertEquals(Float.NEGATIVE_INFINITY, text.getTermNorm("unknown", 1f), 0f);
+    assertEquals(Float.NEGATIVE_INFINITY, mapped.getTermNorm("happi", 0f), 0f);
+  }
+
+  @Test
+  public void testPruneThresholdAndDimensions() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"),
+      new File(dir, "test.ckb"));
+    CKBLoadOptions options = new CKBLoadOptions();
+    options.setPruneThreshold(0.2f);
+    options.setMaxDimensions(3);
+    CognitiveKnowledgeBase text = CognitiveKnowledgeBase.loadTextCKB("text", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f, options);
+    CognitiveKnowledgeBase mapped = CognitiveKnowledgeBase.loadBinaryCKB("mapped", base, "test.ckb", 1f, 1f, options);
+
+    int kept = 0;
+    double mass = 0;
+    double keptMass = 0;
+    for (float[] entry : MODEL) {
+      mass += entry[2] * entry[2];
+      if (entry[1] < 3 && Math.abs(entry[2]) >= 0.2f) {
+        kept++;
+        keptMass += entry[2] * entry[2];
+      }
+    }
+    assertEquals(3, text.getDimentionality());
+    assertEquals(kept, text.getNonZeroCount());
+    assertEquals(keptMass / mass, text.getRetainedMass(), 1e-6);
+    assertEquals(kept, mapped.getNonZeroCount());
+    assertEquals(text.getRetainedMass(), mapped.getRetainedMass(), 1e-6f);
+    assertSameModel(text, mapped);
+    // jump only has a value past the kept dimensions
+    assertEquals(Float.NEGATIVE_INFINITY, text.getTermNorm("jump", 1f), 0f);
+  }
+
+  @Test
+  public void testConverterMatchesText() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"),
+      new File(dir, "test.ckb"));
+
+    CognitiveKnowledgeBase text = CognitiveKnowledgeBase.loadSparseCKB("text", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+    CognitiveKnowledgeBase mapped = CognitiveKnowledgeBase.loadBinaryCKB("mapped", base, "test.ckb", 1f, 1f, true);
+    assertSameModel(text, mapped);
+  }
+
+  @Test
+  public void testRewriteKeepsMappedVersion() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    File binary = new File(dir, "test.ckb");
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"), binary);
+    CognitiveKnowledgeBase mapped = CognitiveKnowledgeBase.loadBinaryCKB("mapped", base, "test.ckb", 1f, 1f);
+
+    // a smaller model written over the mapped file
+    CKBFormat.write(binary, new CKBData(new String[]{"fish"}, new int[]{0, 1}, new int[]{0}, new float[]{1f},
+      new float[]{1f}, DIM));
+    assertFalse(new File(dir, "test.ckb.tmp").exists());
+    CognitiveKnowledgeBase text = CognitiveKnowledgeBase.loadSparseCKB("text", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+    assertSameModel(text, mapped);
+    assertEquals(1, CognitiveKnowledgeBase.loadBinaryCKB("new", base, "test.ckb", 1f, 1f, true).getDictionarySize());
+  }
+
+  @Test
+  public void testFullMatchesSparse() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"),
+      new File(dir, "test.ckb"));
+
+    CognitiveKnowledgeBase sparse = CognitiveKnowledgeBase.loadSparseCKB("sparse", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+    CKBLoadOptions full = new CKBLoadOptions();
+    full.setType(CognitiveKnowledgeBase.Type.FULL);
+    assertSameModel(sparse, CognitiveKnowledgeBase.loadTextCKB("full", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f, full));
+    assertSameModel(sparse, CognitiveKnowledgeBase.loadBinaryCKB("full", base, "test.ckb", 1f, 1f, full));
+
+    // 11 of 24 cells are filled
+    assertEquals(CognitiveKnowledgeBase.Type.SPARSE,
+      CognitiveKnowledgeBase.resolveType(CognitiveKnowledgeBase.Type.AUTO, TERMS.length, DIM, 11));
+    assertEquals(CognitiveKnowledgeBase.Type.FULL,
+      CognitiveKnowledgeBase.resolveType(CognitiveKnowledgeBase.Type.AUTO, TERMS.length, DIM, 12));
+    assertEquals(CognitiveKnowledgeBase.Type.SPARSE,
+      CognitiveKnowledgeBase.resolveType(CognitiveKnowledgeBase.Type.AUTO, Integer.MAX_VALUE, 200, 1L << 40));
+  }
+
+  @Test
+  public void testQuantizedMatchesFloat() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    String base = dir.getPath() + File.separator;
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"),
+      new File(dir, "test.ckb"));
+
+    CognitiveKnowledgeBase sparse = CognitiveKnowledgeBase.loadSparseCKB("sparse", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f);
+    CKBLoadOptions options = new CKBLoadOptions();
+    options.setQuantization(CognitiveKnowledgeBase.Quantization.INT8);
+    CognitiveKnowledgeBase int8 = CognitiveKnowledgeBase.loadTextCKB("int8", base, "test.cache",
+      "test.idflog", "test.tdic", 1f, 1f, options);
+    assertSameModel(sparse, int8, 0.05f);
+    assertTrue(int8.getSizeInBytes() < sparse.getSizeInBytes());
+    options.setQuantization(CognitiveKnowledgeBase.Quantization.FLOAT16);
+    assertSameModel(sparse, CognitiveKnowledgeBase.loadBinaryCKB("half", base, "test.ckb", 1f, 1f, options), 5e-3f);
+  }
+
+  @Test
+  public void testParallelParseMatchesSequential() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    Writer model = new OutputStreamWriter(new FileOutputStream(new File(dir, "test.cache")), "UTF-8");
+    model.write(TERMS.length + " " + DIM + "\n");
+    String[] formats = {"%d %d %s\n", "%d\t%d\t%s\r\n", "%d %d\t%s\n"};
+    String[] numbers = {"0.5", "-2.5E-1", "1e0", "+0.125", "1.0000001", "-3", "7.", ".25", "6.02e+2", "1E-7", "0"};
+    for (int i = 0; i < MODEL.length * 20; i++) {
+      float[] entry = MODEL[i % MODEL.length];
+      model.write(String.format(formats[i % formats.length], (int) entry[0], (int) entry[1],
+        numbers[i % numbers.length]));
+      if (i % 7 == 0) {
+        model.write("\n1 2\n");
+      }
+    }
+    model.write("5 1 0.75");
+    model.close();
+
+    File tdic = new File(dir, "test.tdic");
+    File cache = new File(dir, "test.cache");
+    File idf = new File(dir, "test.idflog");
+    CKBData expected = TextCKBReader.read(tdic, cache, idf, 1);
+    for (int threads = 2; threads <= 8; threads *= 2) {
+      CKBData actual = TextCKBReader.read(tdic, cache, idf, threads);
+      assertEquals(expected.dimension, actual.dimension);
+      assertTrue(Arrays.equals(expected.rowOffsets, actual.rowOffsets));
+      assertTrue(Arrays.equals(expected.columns, actual.columns));
+      for (int i = 0; i < expected.values.length; i++) {
+        assertEquals(expected.values[i], actual.values[i], 0f);
+      }
+    }
+  }
+
+  @Test
+  public void testHalfPrecision() {
+    float[] exact = {0f, -0f, 1f, -2f, 0.5f, 65504f, 6.1035156E-5f, 5.9604645E-8f, 0.099975586f};
+    for (float f : exact) {
+      assertEquals(f, QuantizedCKBStore.fromHalf(QuantizedCKBStore.toHalf(f) & 0xffff), 0f);
+    }
+    assertEquals(Float.POSITIVE_INFINITY, QuantizedCKBStore.fromHalf(QuantizedCKBStore.toHalf(65520f) & 0xffff), 0f);
+    assertTrue(Float.isNaN(QuantizedCKBStore.fromHalf(QuantizedCKBStore.toHalf(Float.NaN) & 0xffff)));
+    for (int i = 0; i < 10000; i++) {
+      float f = (float) (Math.random() * 2 - 1);
+      assertEquals(f, QuantizedCKBStore.fromHalf(QuantizedCKBStore.toHalf(f) & 0xffff), Math.abs(f) / 2048f + 3e-8f);
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testChecksumDetectsCorruption() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    File binary = new File(dir, "test.ckb");
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"), binary);
+
+    RandomAccessFile raf = new RandomAccessFile(binary, "rw");
+    raf.seek(raf.length() - 3);
+    raf.write(0x7f);
+    raf.close();
+    CognitiveKnowledgeBase.loadBinaryCKB("corrupt", dir.getPath() + File.separator, "test.ckb", 1f, 1f, true);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testRejectsForeignFile() throws IOException {
+    File dir = folder.getRoot();
+    writeTextCKB(dir);
+    CognitiveKnowledgeBase.loadBinaryCKB("bad", dir.getPath() + File.separator, "test.cache", 1f, 1f);
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.searchbox.solr;
+
+import com.searchbox.sense.CKBConverter;
+import com.searchbox.sense.CKBService;
+import com.searchbox.sense.CognitiveKnowledgeBase;
+import com.searchbox.sense.TestBinaryCKB;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class TestCKBRegistry {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private NamedList<String> config(File dir) {
+    NamedList<String> config = new NamedList<String>();
+    config.add("name", "test");
+    config.add("certaintyValue", "1");
+    config.add("maximumDistance", "1");
+    config.add("type", "SPARSE");
+    config.add("baseDirectory", dir.getPath() + File.separator);
+    config.add("modelFile", "test.cache");
+    config.add("idfFile", "test.idflog");
+    config.add("dictionaryFile", "test.tdic");
+    return config;
+  }
+
+  @Test
+  public void testReloadPublishesNewVersion() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    CKBConverter.convert(new File(dir, "test.tdic"), new File(dir, "test.cache"), new File(dir, "test.idflog"),
+      new File(dir, "test.ckb"));
+
+    CognitiveKnowledgeBase first = CKBRegistry.register("reload", config(dir));
+    assertSame(first, SenseQParserPlugin.getCKBbyID("reload"));
+    final long version = CKBRegistry.getVersion();
+
+    Map<String, String> overrides = new HashMap<String, String>();
+    overrides.put("binaryFile", "test.ckb");
+    CKBRegistry.Entry entry = CKBRegistry.reload("reload", overrides).get();
+    CognitiveKnowledgeBase second = SenseQParserPlugin.getCKBbyID("reload");
+    assertSame(entry.ckb, second);
+    assertNotSame(first, second);
+    assertTrue(CKBRegistry.getVersion() > version);
+    assertEquals("test.ckb", entry.config.get("binaryFile"));
+
+    // the old version still answers for the queries holding it
+    assertEquals(first.getFullCkbVector("happi", 1f).getNorm(), second.getFullCkbVector("happi", 1f).getNorm(), 1e-6f);
+  }
+
+  @Test
+  public void testSameFilesShareOneModel() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    NamedList<String> other = config(dir);
+    other.setVal(other.indexOf("name", 0), "other");
+    other.setVal(other.indexOf("maximumDistance", 0), "2");
+    CognitiveKnowledgeBase first = CKBRegistry.register("shared1", config(dir));
+    CognitiveKnowledgeBase second = CKBRegistry.register("shared2", other);
+
+    assertNotSame(first, second);
+    assertEquals("other", second.getName());
+    assertEquals(2f, second.getMaximumDistance(), 0f);
+    assertEquals(first.getFullCkbVector("happi", 1f).getNorm(), second.getFullCkbVector("happi", 1f).getNorm(), 0f);
+    String key = new File(dir, "test.cache").getCanonicalPath();
+    assertEquals(Integer.valueOf(2), references(key));
+
+    CKBRegistry.register("shared2", config(dir), true);
+    assertEquals(Integer.valueOf(1), references(key));
+    CKBRegistry.register("shared1", config(dir), true);
+    assertEquals(null, references(key));
+  }
+
+  private static Integer references(String path) {
+    for (Map.Entry<String, Integer> e : CKBService.getCKBService().getReferences().entrySet()) {
+      if (e.getKey().startsWith(path)) {
+        return e.getValue();
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testFailedReloadKeepsCurrentVersion() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    CognitiveKnowledgeBase first = CKBRegistry.register("failed", config(dir));
+
+    try {
+      CKBRegistry.reload("failed", Collections.singletonMap("modelFile", "missing.cache")).get();
+      fail("Reloading a missing model should fail");
+    } catch (ExecutionException e) {
+      // expected
+    }
+    assertSame(first, SenseQParserPlugin.getCKBbyID("failed"));
+    NamedList status = (NamedList) CKBRegistry.getStatus().get("failed");
+    assertTrue(status.get("lastError") != null);
+  }
+
+  @Test
+  public void testLazyLoadAndEviction() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    CKBRegistry.register("lazy1", config(dir), true);
+    CKBRegistry.register("lazy2", config(dir), true);
+    assertEquals(Boolean.FALSE, ((NamedList) CKBRegistry.getStatus().get("lazy1")).get("loaded"));
+
+    final CognitiveKnowledgeBase[] loaded = new CognitiveKnowledgeBase[4];
+    Thread[] threads = new Thread[loaded.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int slot = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          loaded[slot] = CKBRegistry.get("lazy1");
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (CognitiveKnowledgeBase ckb : loaded) {
+      assertSame("concurrent first uses share a single load", loaded[0], ckb);
+    }
+
+    long size = loaded[0].getSizeInBytes();
+    try {
+      CKBRegistry.setMemoryBudget(size);
+      Thread.sleep(5);
+      CognitiveKnowledgeBase second = CKBRegistry.get("lazy2");
+      assertEquals(Boolean.FALSE, ((NamedList) CKBRegistry.getStatus().get("lazy1")).get("loaded"));
+      assertEquals(Boolean.TRUE, ((NamedList) CKBRegistry.getStatus().get("lazy2")).get("loaded"));
+      assertSame(second, CKBRegistry.get("lazy2"));
+      assertNotSame(loaded[0], CKBRegistry.get("lazy1"));
+    } finally {
+      CKBRegistry.setMemoryBudget(Long.MAX_VALUE);
+    }
+  }
+
+  @Test
+  public void testWarmUpFailsFastUntilReady() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    CKBRegistry.register("warm1", config(dir), true);
+    CKBRegistry.register("warm2", config(dir), true);
+    // the warm up of warm1 waits for this load until the test lets it go
+    final CountDownLatch gate = new CountDownLatch(1);
+    FutureTask<CKBRegistry.Entry> held = new FutureTask<CKBRegistry.Entry>(new Callable<CKBRegistry.Entry>() {
+      public CKBRegistry.Entry call() throws Exception {
+        gate.await();
+        return null;
+      }
+    });
+    CKBRegistry.loads.put("warm1", held);
+    List<String> ids = Arrays.asList("warm1", "warm2");
+    List<Future<?>> loads = CKBRegistry.warmUp(ids, 2);
+    try {
+      CKBRegistry.get("warm1");
+      fail("A CKB warming up should fail fast");
+    } catch (CKBRegistry.WarmingException e) {
+      assertEquals(503, e.code());
+    } finally {
+      gate.countDown();
+      CKBRegistry.loads.remove("warm1", held);
+      held.run();
+    }
+    CKBRegistry.awaitWarmUp(ids, loads);
+    assertTrue(CKBRegistry.get("warm1") != null);
+    assertTrue(CKBRegistry.get("warm2") != null);
+  }
+
+  /**
+   * CKBs warmed up together beyond the budget evict each other, which does
+   * not fail the warm up.
+   */
+  @Test
+  public void testWarmUpOverMemoryBudget() throws Exception {
+    File dir = folder.getRoot();
+    TestBinaryCKB.writeTextCKB(dir);
+    List<String> ids = Arrays.asList("budget1", "budget2", "budget3");
+    for (String id : ids) {
+      CKBRegistry.register(id, config(dir), true);
+    }
+    try {
+      CKBRegistry.setMemoryBudget(1);
+      // one at a time, each load evicts the one before
+      CKBRegistry.awaitWarmUp(ids, CKBRegistry.warmUp(ids, 1));
+      assertEquals(Boolean.FALSE, ((NamedList) CKBRegistry.getStatus().get("budget1")).get("loaded"));
+      assertEquals(Boolean.TRUE, ((NamedList) CKBRegistry.getStatus().get("budget3")).get("loaded"));
+      assertTrue(CKBRegistry.get("budget1") != null);
+    } finally {
+      CKBRegistry.setMemoryBudget(Long.MAX_VALUE);
+    }
+  }
+}